@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.process.*;
+
+// Aligned view of a stack (used by Alignment_Roi and Prealign_Stack): a virtual
+// stack which keeps a reference to the source stack and the translations of
+// all slices. A slice is only translated when it is requested, the source stack
+// is not changed. Creating the stack takes no time and no additional memory,
+// so several alignments of the same stack can be compared.
+// Slices are translated like StackTranslator does (pixels moved in from
+// outside of the image are 0). Changes of the slices are not saved.
+public class AlignedVirtualStack extends VirtualStack {
+
+	ImageStack source;
+	int[] dx; // translation of slice n is (dx[n-1], dy[n-1])
+	int[] dy;
+	int bitDepth; // of the source, getBitDepth is called often (a slice of a virtual source is read from disk)
+
+	public AlignedVirtualStack(ImageStack source, int[] dx, int[] dy) {
+		super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+		this.source = source;
+		this.dx = dx.clone();
+		this.dy = dy.clone();
+		bitDepth = source.getBitDepth();
+		if (bitDepth == 0) bitDepth = source.getProcessor(1).getBitDepth(); // not known by the source
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		ImageProcessor ip = source.getProcessor(n);
+		ImageProcessor aligned = ip.createProcessor(getWidth(), getHeight()); // new pixel array (0)
+		StackTranslator.copyTranslated(ip.getPixels(), aligned.getPixels(), getWidth(), getHeight(), dx[n-1], dy[n-1]);
+		aligned.setCalibrationTable(ip.getCalibrationTable());
+		if (!(ip instanceof ColorProcessor)) aligned.setMinAndMax(ip.getMin(), ip.getMax());
+		return aligned;
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public void setPixels(Object pixels, int n) {} // slices are computed from the source stack
+
+	public int getSize() {
+		return source.getSize();
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public String getSliceLabel(int n) {
+		return source.getSliceLabel(n);
+	}
+
+	public int[] getTranslationX() {
+		return dx;
+	}
+
+	public int[] getTranslationY() {
+		return dy;
+	}
+
+}
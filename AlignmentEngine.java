@@ -0,0 +1,910 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.process.*;
+import java.awt.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Computation of Alignment_Roi without user interface: finds the translation of
+// every slice of a stack from a rectangular Roi, e.g. from other plugins, macros
+// in headless mode or Java programs:
+//   AlignmentEngine engine = new AlignmentEngine(stack, new Rectangle(x, y, w, h));
+//   engine.range = 10;
+//   engine.setMode("previous slice", 0);
+//   Corrections corrections = engine.align();
+// The parameters are the fields below (defaults as in the dialog of
+// Alignment_Roi); the slices are only read, the stack is not changed.
+public class AlignmentEngine {
+
+	static final String[] MODES = {"selected slice", "previous slice", "k nearest slices (global fit)"};
+	static final String[] METRICS = {"error exponent", "least squares (integral image)", "normalized cross-correlation"};
+	static final String[] SEARCH_METHODS = {"exhaustive", "FFT", "image pyramid"};
+	static final String[] ADJUST_CHOICES = {"first slice of range", "last slice of range", "currently selected slice"};
+
+	ImageStack stack; // slices are read from the stack, the displayed slice is not changed
+	float[] cTable; // calibration table of the image (or null), used for all slices
+	double[] rgbWeights; // RGB weights of the image (or null), used for all slices
+	int stackSize;
+
+	Rectangle roiRect; // Roi
+	int roiWidth;
+	int roiHeight;
+
+	ErrorKernel kernel; // reference Roi and error computation
+	int[] correctionX; // array for corrections in x direction
+	int[] correctionY; // array for corrections in y direction
+
+	// parameters
+
+	int range = 5; // range of possible translations that are checked
+	double power = 2; // loading of error
+	String metric = METRICS[0]; // "error exponent", "least squares (integral image)" or "normalized cross-correlation"
+	String searchMethod = SEARCH_METHODS[0]; // "exhaustive", "FFT" or "image pyramid"
+	int startRange; // adaptive range: first range checked for every slice, 0: always check the whole range
+	int threads = 1; // number of threads for the search
+	boolean earlyExit = true; // stop computing errors above the min. error, check translations from the center outwards
+	boolean vectorKernel; // use VectorKernel if possible
+	boolean prevSlice; // for compare to previous slice mode
+	boolean chunked; // previous slice mode: track chunks of the stack in parallel (threads > 1)
+	int neighbors; // k nearest slices mode: number of following slices compared with every slice, 0: other modes
+	MotionPredictor predictor = new MotionPredictor("none"); // predicted shift of the Roi from slice to slice
+	int firstSlice; // index of first corrected slice
+	int lastSlice; // index of last corrected slice
+	int selectedSlice = 1; // slice with the Roi at roiRect (reference slice, start of the search)
+	String adjustTo = ADJUST_CHOICES[0]; // slice with correction (0, 0), see ADJUST_CHOICES
+	boolean correctPrevious; // whether slices before firstSlice should be corrected
+	boolean correctFollowing; // same for slices after lastSlice
+	AlignmentStatistics statistics; // time, candidates and errors of every slice (or null)
+	CorrectionCache cache; // search results of earlier runs (or null); not read with statistics, they need the search
+	boolean fromCache; // the corrections of the last align() were read from the cache
+
+	// state of the search
+
+	int bestXcorr; // correction with least error sum
+	int bestYcorr;
+	int refSlice; // index of start slice / slice for reference
+	ImageProcessor regionIp; // search region of the current slice of a MappedStack
+	int usedRange; // range checked for the last slice
+	int[] sliceRange; // range checked for every slice (0 for slices that have not been searched)
+	FFTSearch fftSearch; // for FFT search method
+	ReferenceCache refCache; // data derived from the reference, reused for all slices with the same reference
+	PyramidSearch pyramidSearch; // for image pyramid search method
+	ForkJoinPool pool; // thread pool for the search (if threads > 1)
+	double fitResidual; // k nearest slices mode: rms deviation of the pairwise shifts from the corrections (px)
+	int[] spiralX; // translations of the exhaustive search sorted by distance from the center
+	int[] spiralY;
+	Point chunkStart; // chunk of previous slice mode in parallel: Roi position in the first and last slice
+	Point chunkEnd;
+
+	public AlignmentEngine(ImageStack stack, Rectangle roi) {
+		this.stack = stack;
+		stackSize = stack.getSize();
+		roiRect = new Rectangle(roi);
+		roiWidth = roi.width;
+		roiHeight = roi.height;
+		firstSlice = 1;
+		lastSlice = stackSize;
+	}
+
+	// pixel values as in the image of ip (calibration table, RGB weights) for all slices
+	public void setPixelValues(ImageProcessor ip) {
+		cTable = ip.getCalibrationTable();
+		if (ip instanceof ColorProcessor) rgbWeights = ((ColorProcessor) ip).getRGBWeights();
+	}
+
+	// mode: one of MODES; k: number of following slices compared with every slice (k nearest slices mode)
+	public void setMode(String mode, int k) {
+		if (!contains(MODES, mode)) throw new IllegalArgumentException("Unknown mode: " + mode);
+		prevSlice = mode.equals(MODES[1]);
+		neighbors = mode.equals(MODES[2]) ? Math.max(1, k) : 0;
+	}
+
+	// corrections of all slices with the parameters above, relative to the slice given by adjustTo
+	public Corrections align() {
+		if (!contains(METRICS, metric)) throw new IllegalArgumentException("Unknown error metric: " + metric);
+		if (!contains(SEARCH_METHODS, searchMethod)) throw new IllegalArgumentException("Unknown search method: " + searchMethod);
+		if (!contains(ADJUST_CHOICES, adjustTo)) throw new IllegalArgumentException("Unknown reference slice: " + adjustTo);
+		if (firstSlice < 1 || lastSlice > stackSize || firstSlice > lastSlice)
+			throw new IllegalArgumentException("Invalid range of slices: " + firstSlice + "-" + lastSlice);
+		if (selectedSlice < firstSlice || selectedSlice > lastSlice)
+			throw new IllegalArgumentException("Selected slice " + selectedSlice + " is beyond the range of slices");
+		if (metric.equals(METRICS[1])) power = 2;
+		if (threads < 1) threads = 1;
+
+		String key = cache != null ? cache.key(this) : null;
+		fromCache = key != null && statistics == null && cache.get(key, this);
+		if (!fromCache) {
+			try {
+				computeCorrections(getSliceProcessor(selectedSlice, roiRect.x, roiRect.y));
+			} finally {
+				if (pool != null) pool.shutdown();
+				pool = null;
+			}
+			if (key != null) cache.put(key, this);
+		}
+		if (statistics != null) statistics.addSearchTotal();
+
+		//
+		// adjust to another slice than refSlice
+		//
+
+		int adjustSlice = firstSlice; // default initialization
+
+		// use choice "Adjust to..."
+		if (adjustTo.equals("last slice of range")) adjustSlice = lastSlice;
+		if (adjustTo.equals("currently selected slice")) adjustSlice = selectedSlice;
+
+		// use offset of adjustSlice
+		int offsetX = correctionX[adjustSlice-1];
+		int offsetY = correctionY[adjustSlice-1];
+		for (int i = firstSlice; i <= lastSlice; i++) {
+			correctionX[i-1] -= offsetX;
+			correctionY[i-1] -= offsetY;
+		}
+
+		//
+		// correct previous and correct following slices
+		//
+
+		if (correctPrevious) {
+			for (int i = 1; i < firstSlice; i++) {
+				correctionX[i-1] = correctionX[firstSlice-1];
+				correctionY[i-1] = correctionY[firstSlice-1];
+			}
+		}
+		if (correctFollowing) {
+			for (int i = lastSlice; i <= stackSize; i++) {
+				correctionX[i-1] = correctionX[lastSlice-1];
+				correctionY[i-1] = correctionY[lastSlice-1];
+			}
+		}
+
+		return new Corrections(correctionX, correctionY, sliceRange, firstSlice, lastSlice, refSlice, fitResidual);
+	}
+
+	static boolean contains(String[] choices, String choice) {
+		for (String c : choices) {
+			if (c.equals(choice)) return true;
+		}
+		return false;
+	}
+
+	// computes correctionX, correctionY for the slices firstSlice...lastSlice, starting with the Roi
+	// roiRect in selectedSlice (see align); ip: slice of the stack (image type, pixel values)
+	public void computeCorrections(ImageProcessor ip) {
+		int roiX = roiRect.x;
+		int roiY = roiRect.y;
+
+		//
+		// arrays for x and y correcions
+		//
+
+		correctionX = new int[stackSize];
+		correctionY = new int[stackSize];
+		sliceRange = new int[stackSize];
+
+		setupSearch(ip);
+		if (threads > 1) pool = new ForkJoinPool(threads);
+
+		//
+		// compute corrections
+		//
+
+		if (neighbors > 0 && lastSlice > firstSlice) {
+			computeCorrectionsGlobal(ip);
+			return;
+		}
+		if (prevSlice && chunked && pool != null && lastSlice - firstSlice > 1) {
+			computeCorrectionsChunked(ip);
+			return;
+		}
+		
+		// use firstSlice as first reference slice in previous slice mode
+		ImageProcessor sliceIp = getSliceProcessor(prevSlice ? firstSlice : selectedSlice, roiX, roiY);
+
+		// copy values from reference image to the error kernel
+		setReference(sliceIp, roiX, roiY);
+
+		if (prevSlice) { // prevSlice mode
+
+			refSlice = selectedSlice;
+			correctionX[0] = 0;
+			correctionY[0] = 0;
+
+			predictor.reset(); // prediction starts again at refSlice
+			if (refSlice < lastSlice) // avoid exception when refSlice == lastSlice
+			for (int slice = refSlice + 1; slice <= lastSlice; slice++) { // for every slice do...
+
+				sliceIp = trackSlice(slice, roiX, roiY);
+
+				if (slice == refSlice + 1) { // first iteration: use correction to initialize bestXcorr, bestYcorr
+					correctionX[slice-1] = bestXcorr;
+					correctionY[slice-1] = bestYcorr;
+				}
+				else {
+					correctionX[slice-1] = correctionX[slice-2] + bestXcorr; // absolute correction of slice
+					correctionY[slice-1] = correctionY[slice-2] + bestYcorr; // uses correction of previous slice
+				}
+
+				roiX -= bestXcorr; // Roi adjustment: Roi moves, corrections are relative to previous slice
+				roiY -= bestYcorr;
+
+				// copy current image to reference
+				setReference(sliceIp, roiX, roiY);
+			}
+
+			// reset Roi (begin at refSlice again)
+			roiX = (int) roiRect.getX();
+			roiY = (int) roiRect.getY();
+			// reset reference
+			setReference(getSliceProcessor(refSlice, roiX, roiY), roiX, roiY);
+			
+			// same procedure as above in other direction:
+
+			predictor.reset(); // prediction starts again at refSlice
+			if (refSlice > firstSlice) // avoid exception when refSlice == firstSlice
+			for (int slice = refSlice -1; slice >= firstSlice; slice--) {	// for every slice do...
+
+				sliceIp = trackSlice(slice, roiX, roiY);
+
+				if (slice == firstSlice - 1) {
+					correctionX[slice-1] = bestXcorr;
+					correctionY[slice-1] = bestYcorr;
+				}
+				else {
+					correctionX[slice-1] = correctionX[slice] + bestXcorr;
+					correctionY[slice-1] = correctionY[slice] + bestYcorr;
+				}
+
+				roiX -= bestXcorr;
+				roiY -= bestYcorr;
+
+				// copy current image to reference
+				setReference(sliceIp, roiX, roiY);
+			}
+
+		}
+
+		else { // compare with selected slice mode
+
+			refSlice = selectedSlice; 
+			correctionX[refSlice-1] = 0; // correction of refSlice is (0, 0)
+			correctionY[refSlice-1] = 0;
+
+			predictor.reset(); // prediction starts again at refSlice
+			if (refSlice > 1)
+			for (int slice = refSlice-1; slice >= firstSlice; slice--) { // go down starting from selected slice
+
+				sliceIp = trackSlice(slice, roiX, roiY);
+				roiX -= bestXcorr;
+				roiY -= bestYcorr;
+				if (slice == refSlice-1) {
+					correctionX[slice-1] = bestXcorr;
+					correctionY[slice-1] = bestYcorr;
+				}
+				else {
+					correctionX[slice-1] = correctionX[slice] + bestXcorr;
+					correctionY[slice-1] = correctionY[slice] + bestYcorr;
+				}
+			}
+
+
+			// reset Roi (beginning from refSlice again)
+			roiX = (int) roiRect.getX();
+			roiY = (int) roiRect.getY();			
+		
+			predictor.reset(); // prediction starts again at refSlice
+			if (refSlice < lastSlice)
+			for (int slice = refSlice+1; slice <= lastSlice; slice++) { // go up starting from selected slice
+
+				sliceIp = trackSlice(slice, roiX, roiY);
+				roiX -= bestXcorr;
+				roiY -= bestYcorr;
+				if (slice == refSlice+1) {
+					correctionX[slice-1] = bestXcorr;
+					correctionY[slice-1] = bestYcorr;
+				}
+				else {
+					correctionX[slice-1] = correctionX[slice-2] + bestXcorr;
+					correctionY[slice-1] = correctionY[slice-2] + bestYcorr;
+				}
+			}
+			
+		}
+	}
+
+	void setupSearch(ImageProcessor ip) { // error kernel and search methods for the parameters
+		if (metric.equals("error exponent")) kernel = ErrorKernel.create(ip, roiWidth, roiHeight, power, vectorKernel);
+		else kernel = ErrorKernel.createCorrelation(roiWidth, roiHeight, metric.equals("normalized cross-correlation"));
+		refCache = new ReferenceCache(kernel.getReference(), roiWidth, roiHeight); // one for the whole run
+		// normalized cross-correlation: the least-squares peak of the FFT can be far from the best match if
+		// the brightness changes, the translations are checked one by one as with "exhaustive"
+		if (searchMethod.equals("FFT") && !metric.equals("normalized cross-correlation")) fftSearch = new FFTSearch(roiWidth, roiHeight, range);
+		if (searchMethod.equals("image pyramid")) pyramidSearch = new PyramidSearch(roiWidth, roiHeight, range, power);
+		if (earlyExit || startRange > 0) computeSpiral();
+	}
+
+	// previous slice mode in parallel: the slices are split into one chunk per thread, from selectedSlice
+	// up to lastSlice and down to firstSlice (chunks per direction in proportion to the slices), neighboring
+	// chunks share their boundary slice. Every chunk is tracked by its own AlignmentEngine in two passes:
+	//  1. all chunks in parallel, starting with the Roi at roiRect in their first slice
+	//  2. outwards from selectedSlice, the chunks are joined at the boundary slices: the corrections of a
+	//     chunk are added to the correction of its first slice, and its Roi path is moved to the Roi
+	//     position reached by the chunk before (see moveChunk). Only if the moved Roi leaves the image
+	//     or its search region, or if the first shift of the chunk is not found again from the moved Roi
+	//     (feature moving against a static background), the chunk is tracked again from there.
+	// Same result as the sequential mode if the shifts do not depend on the Roi position (e.g. the
+	// whole image drifts), except for the motion prediction, which starts again at the first slice of
+	// every chunk, and the first comparison above selectedSlice, which is made with selectedSlice (the
+	// sequential mode compares with firstSlice there).
+	void computeCorrectionsChunked(ImageProcessor ip) {
+		refSlice = selectedSlice;
+		int up = lastSlice - refSlice;
+		int down = refSlice - firstSlice;
+		int chunks = Math.min(threads, up + down); // at least 2, see computeCorrections
+		int chunksUp = up == 0 ? 0 : down == 0 ? chunks : Math.max(1, Math.min(chunks - 1, (int) Math.round((double) chunks * up / (up + down))));
+		int chunksDown = chunks - chunksUp;
+		int[] from = new int[chunks]; // first slice of every chunk (closer to selectedSlice)
+		int[] to = new int[chunks]; // last slice of every chunk
+		for (int k = 0; k < chunksUp; k++) {
+			from[k] = refSlice + (int) ((long) k * up / chunksUp);
+			to[k] = refSlice + (int) ((long) (k + 1) * up / chunksUp);
+		}
+		for (int k = 0; k < chunksDown; k++) {
+			from[chunksUp + k] = refSlice - (int) ((long) k * down / chunksDown);
+			to[chunksUp + k] = refSlice - (int) ((long) (k + 1) * down / chunksDown);
+		}
+		AlignmentEngine[] workers = new AlignmentEngine[chunks];
+		for (int k = 0; k < chunks; k++) workers[k] = createWorker(ip);
+		pool.invoke(new Chunks(workers, from, to, null, 0, chunks - 1));
+
+		// join the chunks: move to the Roi position at the boundary slice (or track again), add the correction of the boundary slice
+		correctionX[refSlice-1] = 0;
+		correctionY[refSlice-1] = 0;
+		for (int k = 0; k < chunks; k++) {
+			AlignmentEngine worker = workers[k];
+			if (k != 0 && k != chunksUp) { // not the first chunk of its direction (starts at roiRect in selectedSlice)
+				Point reached = workers[k-1].chunkEnd;
+				if (!reached.equals(worker.chunkStart) && !worker.moveChunk(from[k], to[k], reached)) {
+					if (statistics != null) worker.statistics = new AlignmentStatistics(statistics.errorSurface); // rows of the last pass
+					worker.trackChunk(from[k], to[k], reached.x, reached.y);
+				}
+			}
+			int step = to[k] > from[k] ? 1 : -1;
+			int offsetX = correctionX[from[k]-1];
+			int offsetY = correctionY[from[k]-1];
+			for (int slice = from[k] + step; slice != to[k] + step; slice += step) {
+				correctionX[slice-1] = offsetX + worker.correctionX[slice-1];
+				correctionY[slice-1] = offsetY + worker.correctionY[slice-1];
+				sliceRange[slice-1] = worker.sliceRange[slice-1];
+			}
+			if (statistics != null) statistics.add(worker.statistics);
+		}
+	}
+
+	// k nearest slices mode: every slice of firstSlice...lastSlice is compared with the following
+	// neighbors slices (Roi at roiRect in both slices, as in selected slice mode), all pairs in
+	// parallel; the corrections are the least-squares fit of all shifts (see PairwiseShifts),
+	// rounded to integers, correction (0, 0) for the selected slice. The feature has to be within
+	// the Roi at roiRect in all slices, the range has to cover the shifts over neighbors slices.
+	void computeCorrectionsGlobal(ImageProcessor ip) {
+		PairwiseShifts pairs = new PairwiseShifts(firstSlice, lastSlice, neighbors);
+		if (pool == null) computePairs(firstSlice, lastSlice - 1, pairs);
+		else { // blocks of reference slices, one per thread
+			int blocks = Math.min(threads, lastSlice - firstSlice);
+			AlignmentEngine[] workers = new AlignmentEngine[blocks];
+			int[] firstRef = new int[blocks];
+			int[] lastRef = new int[blocks];
+			for (int k = 0; k < blocks; k++) {
+				firstRef[k] = firstSlice + (int) ((long) k * (lastSlice - firstSlice) / blocks);
+				lastRef[k] = firstSlice + (int) ((long) (k + 1) * (lastSlice - firstSlice) / blocks) - 1;
+			}
+			for (int k = 0; k < blocks; k++) workers[k] = createWorker(ip);
+			pool.invoke(new Chunks(workers, firstRef, lastRef, pairs, 0, blocks - 1));
+			for (int k = 0; k < blocks; k++) {
+				for (int slice = firstSlice; slice <= lastSlice; slice++) {
+					sliceRange[slice-1] = Math.max(sliceRange[slice-1], workers[k].sliceRange[slice-1]);
+				}
+				if (statistics != null) statistics.add(workers[k].statistics);
+			}
+		}
+
+		double[][] fit = pairs.solve();
+		fitResidual = pairs.residual(fit);
+		refSlice = Math.max(firstSlice, Math.min(lastSlice, selectedSlice));
+		for (int slice = firstSlice; slice <= lastSlice; slice++) {
+			correctionX[slice-1] = (int) Math.round(fit[0][slice - firstSlice] - fit[0][refSlice - firstSlice]);
+			correctionY[slice-1] = (int) Math.round(fit[1][slice - firstSlice] - fit[1][refSlice - firstSlice]);
+		}
+	}
+
+	// compares the reference slices firstRef...lastRef with their following slices (see computeCorrectionsGlobal)
+	void computePairs(int firstRef, int lastRef, PairwiseShifts pairs) {
+		int roiX = roiRect.x;
+		int roiY = roiRect.y;
+		for (int i = firstRef; i <= lastRef; i++) {
+			setReference(getSliceProcessor(i, roiX, roiY), roiX, roiY);
+			if (statistics != null) statistics.referenceSlice = i;
+			predictor.reset(); // predicts the shift to slice j from the shifts to i+1...j-1
+			for (int j = i + 1; j <= Math.min(i + neighbors, lastSlice); j++) {
+				trackSlice(j, roiX, roiY);
+				pairs.set(i, j, bestXcorr, bestYcorr);
+			}
+		}
+	}
+
+	// AlignmentEngine with the same parameters and its own error kernel, single thread
+	AlignmentEngine createWorker(ImageProcessor ip) {
+		AlignmentEngine worker = new AlignmentEngine(stack, roiRect);
+		worker.cTable = cTable;
+		worker.rgbWeights = rgbWeights;
+		worker.range = range;
+		worker.power = power;
+		worker.metric = metric;
+		worker.searchMethod = searchMethod;
+		worker.earlyExit = earlyExit;
+		worker.vectorKernel = vectorKernel;
+		worker.startRange = startRange;
+		worker.neighbors = neighbors;
+		worker.lastSlice = lastSlice;
+		worker.threads = 1;
+		worker.predictor = new MotionPredictor(predictor.method);
+		if (statistics != null) worker.statistics = new AlignmentStatistics(statistics.errorSurface);
+		worker.correctionX = new int[stackSize];
+		worker.correctionY = new int[stackSize];
+		worker.sliceRange = new int[stackSize];
+		worker.setupSearch(ip);
+		return worker;
+	}
+
+	// tracks the slices first...last (downwards if last < first) starting with the Roi at (roiX, roiY) in
+	// first, corrections relative to first (see computeCorrectionsChunked)
+	void trackChunk(int first, int last, int roiX, int roiY) {
+		int step = last > first ? 1 : -1;
+		chunkStart = new Point(roiX, roiY);
+		correctionX[first-1] = 0;
+		correctionY[first-1] = 0;
+		predictor.reset();
+		setReference(getSliceProcessor(first, roiX, roiY), roiX, roiY);
+		for (int slice = first + step; slice != last + step; slice += step) {
+			ImageProcessor sliceIp = trackSlice(slice, roiX, roiY);
+			correctionX[slice-1] = correctionX[slice-1-step] + bestXcorr;
+			correctionY[slice-1] = correctionY[slice-1-step] + bestYcorr;
+			roiX -= bestXcorr;
+			roiY -= bestYcorr;
+			setReference(sliceIp, roiX, roiY);
+		}
+		chunkEnd = new Point(roiX, roiY);
+	}
+
+	// moves the Roi path of the chunk first...last tracked by trackChunk to start at the Roi position start
+	// (corrections relative to first unchanged); false if the chunk has to be tracked again: the search
+	// region of the moved Roi leaves the image in a slice where it did not before, or the shift from first
+	// to the next slice is another one from the moved Roi (one search, not part of the statistics)
+	boolean moveChunk(int first, int last, Point start) {
+		int step = last > first ? 1 : -1;
+		int dx = start.x - chunkStart.x;
+		int dy = start.y - chunkStart.y;
+		for (int slice = first; slice != last + step; slice += step) {
+			int x = chunkStart.x - correctionX[slice-1]; // Roi of the slice when tracked
+			int y = chunkStart.y - correctionY[slice-1];
+			if (isClipped(x + dx, y + dy) && !isClipped(x, y)) return false;
+		}
+		AlignmentStatistics slices = statistics;
+		statistics = null;
+		int checkedRange = sliceRange[first+step-1];
+		predictor.reset();
+		setReference(getSliceProcessor(first, start.x, start.y), start.x, start.y);
+		trackSlice(first + step, start.x, start.y);
+		sliceRange[first+step-1] = checkedRange;
+		statistics = slices;
+		if (bestXcorr != correctionX[first+step-1] || bestYcorr != correctionY[first+step-1]) return false;
+		chunkStart = new Point(start);
+		chunkEnd = new Point(chunkEnd.x + dx, chunkEnd.y + dy);
+		return true;
+	}
+
+	boolean isClipped(int roiX, int roiY) { // search region of the Roi at (roiX, roiY) not within the image
+		return roiX - range < 0 || roiY - range < 0 || roiX + roiWidth + range > stack.getWidth() || roiY + roiHeight + range > stack.getHeight();
+	}
+
+	// tracks the chunks firstChunk...lastChunk from[k]...to[k] (pairs == null) or computes the pairwise
+	// shifts of the reference slices from[k]...to[k] of every chunk k, split into single chunks
+	static class Chunks extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		AlignmentEngine[] workers;
+		int[] from; // first slice of every chunk
+		int[] to; // last slice of every chunk
+		PairwiseShifts pairs; // k nearest slices mode or null
+		int firstChunk;
+		int lastChunk;
+
+		Chunks(AlignmentEngine[] workers, int[] from, int[] to, PairwiseShifts pairs, int firstChunk, int lastChunk) {
+			this.workers = workers;
+			this.from = from;
+			this.to = to;
+			this.pairs = pairs;
+			this.firstChunk = firstChunk;
+			this.lastChunk = lastChunk;
+		}
+
+		protected void compute() {
+			if (firstChunk < lastChunk) {
+				int middle = firstChunk + (lastChunk - firstChunk) / 2;
+				invokeAll(new Chunks(workers, from, to, pairs, firstChunk, middle), new Chunks(workers, from, to, pairs, middle + 1, lastChunk));
+				return;
+			}
+			AlignmentEngine worker = workers[firstChunk];
+			if (pairs == null) worker.trackChunk(from[firstChunk], to[firstChunk], worker.roiRect.x, worker.roiRect.y);
+			else worker.computePairs(from[firstChunk], to[firstChunk], pairs);
+		}
+
+	}
+
+	public void setReference(ImageProcessor ip, int roiX, int roiY) { // new reference: Roi at (roiX, roiY) of ip
+		long start = System.nanoTime();
+		kernel.setReference(ip, roiX, roiY);
+		refCache.update();
+		if (statistics != null) statistics.addReferenceTime(System.nanoTime() - start);
+	}
+
+	public ImageProcessor getSliceProcessor(int slice) { // processor of a slice without displaying it
+		ImageProcessor sliceIp = stack.getProcessor(slice);
+		sliceIp.setCalibrationTable(cTable); // same pixel values as in the image window
+		if (rgbWeights != null) ((ColorProcessor) sliceIp).setRGBWeights(rgbWeights);
+		return sliceIp;
+	}
+
+	// processor with the search region around the Roi at (roiX, roiY) of a slice; only this region
+	// is read from a MappedStack (into the same processor for all slices), other stacks as above
+	public ImageProcessor getSliceProcessor(int slice, int roiX, int roiY) {
+		if (!(stack instanceof MappedStack)) return getSliceProcessor(slice);
+		if (regionIp == null) {
+			regionIp = ((MappedStack) stack).createProcessor();
+			regionIp.setCalibrationTable(cTable);
+			if (rgbWeights != null) ((ColorProcessor) regionIp).setRGBWeights(rgbWeights);
+		}
+		int margin = pyramidSearch != null ? pyramidSearch.margin : range; // pyramid levels need a larger region
+		Rectangle region = new Rectangle(roiX - margin, roiY - margin, roiWidth + 2 * margin, roiHeight + 2 * margin);
+		region = region.intersection(new Rectangle(0, 0, stack.getWidth(), stack.getHeight()));
+		((MappedStack) stack).readRegion(slice, region, regionIp.getPixels());
+		return regionIp;
+	}
+
+	// searches the Roi in a slice around the position predicted from the shifts of the previous slices;
+	// bestXcorr, bestYcorr are relative to the Roi at (roiX, roiY), returns the processor of the slice
+	ImageProcessor trackSlice(int slice, int roiX, int roiY) {
+		// predicted Roi position, kept inside of the image
+		int predX = Math.max(roiX + roiWidth - stack.getWidth(), Math.min(roiX, predictor.predictX()));
+		int predY = Math.max(roiY + roiHeight - stack.getHeight(), Math.min(roiY, predictor.predictY()));
+		long start = System.nanoTime();
+		ImageProcessor sliceIp = getSliceProcessor(slice, roiX - predX, roiY - predY);
+		long read = System.nanoTime();
+		if (statistics != null) kernel.startCounting();
+		computeBestCorr(sliceIp, roiX - predX, roiY - predY);
+		long searched = System.nanoTime();
+		sliceRange[slice-1] = usedRange;
+		if (statistics != null) {
+			long candidates = kernel.getCandidates(); // before the error surface is computed
+			long pixels = kernel.getPixels();
+			double[] errors = {Double.NaN, Double.NaN};
+			if (statistics.errorSurface) errors = computeMinAndRunnerUp(roiX - predX, roiY - predY);
+			statistics.addSlice(slice, read - start, searched - read, usedRange, candidates, pixels,
+				bestXcorr + predX, bestYcorr + predY, errors[0], errors[1]);
+		}
+		bestXcorr += predX;
+		bestYcorr += predY;
+		predictor.add(bestXcorr, bestYcorr);
+		return sliceIp;
+	}
+
+	// min. error and runner-up of all translations within usedRange after computeBestCorr (see AlignmentStatistics)
+	double[] computeMinAndRunnerUp(int roiX, int roiY) {
+		int n = 2 * usedRange + 1;
+		double[] errors = new double[n * n];
+		for (int xtrans = - usedRange; xtrans <= usedRange; xtrans++) {
+			for (int ytrans = - usedRange; ytrans <= usedRange; ytrans++) {
+				errors[(xtrans + usedRange) * n + ytrans + usedRange] = kernel.computeError(roiX + xtrans, roiY + ytrans);
+			}
+		}
+		return AlignmentStatistics.minAndRunnerUp(errors, n, (usedRange - bestXcorr) * n + usedRange - bestYcorr);
+	}
+
+
+	public void computeBestCorr(ImageProcessor ip, int roiX, int roiY) { // computes best correction for the slice of ip
+		double minerror = 0;
+		bestXcorr = 0;
+		bestYcorr = 0;
+		usedRange = range;
+		kernel.setSlice(ip, new Rectangle(roiX - range, roiY - range, roiWidth + 2 * range, roiHeight + 2 * range));
+		if (fftSearch != null) {
+			computeBestCorrFFT(ip, roiX, roiY);
+			return;
+		}
+		if (searchMethod.equals("image pyramid") && pyramidSearch.levels > 0) { // exhaustive search for small ranges
+			computeBestCorrPyramid(ip, roiX, roiY);
+			return;
+		}
+		if (startRange > 0 && startRange < range) {
+			computeBestCorrAdaptive(ip, roiX, roiY);
+			return;
+		}
+		if (pool != null) {
+			computeBestCorrParallel(ip, roiX, roiY);
+			return;
+		}
+		if (earlyExit) {
+			computeBestCorrSpiral(ip, roiX, roiY);
+			return;
+		}
+		for (int xtrans =  - range; xtrans <=  range; xtrans++) { // check all possible translations
+			for (int ytrans = - range; ytrans <= range; ytrans++) {
+				double error = kernel.computeError(roiX + xtrans, roiY + ytrans);
+				if ((xtrans == - range) && (ytrans == - range)) { // true for 1st iteration
+					minerror = error;
+					bestXcorr = -xtrans;
+					bestYcorr = -ytrans;
+				}
+				if  (error < minerror) { // found new min. error
+					minerror = error;
+					bestXcorr = -xtrans;
+					bestYcorr = -ytrans;
+				}
+			}
+		}
+	}
+
+	public void computeBestCorrFFT(ImageProcessor ip, int roiX, int roiY) { // same as above using FFTSearch
+		int n = 2 * range + 1;
+		boolean found = false; // whether a valid candidate has been found
+
+		if (power == 2) { // least squares: candidates close to the min. of the FFT result are checked exactly
+			double[] errors = fftSearch.computeSquaredErrors(ip, roiX, roiY, refCache);
+			double minapprox = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < errors.length; i++) {
+				if (errors[i] < minapprox) minapprox = errors[i]; // false for NaN (candidate outside of image)
+			}
+			// every estimate is within tolerance of the exact error: the estimate of the exact min. is at most
+			// minapprox + 2 * tolerance (the candidate of minapprox may be too low, the min. too high)
+			double minerror = 0;
+			for (int xtrans = - range; xtrans <= range; xtrans++) { // same order as exhaustive search
+				for (int ytrans = - range; ytrans <= range; ytrans++) {
+					if (!(errors[(xtrans + range) * n + ytrans + range] <= minapprox + 2 * fftSearch.tolerance)) continue;
+					double error = kernel.computeError(roiX + xtrans, roiY + ytrans, limit(found, minerror));
+					if (!found || error < minerror) {
+						found = true;
+						minerror = error;
+						bestXcorr = -xtrans;
+						bestYcorr = -ytrans;
+					}
+				}
+			}
+		}
+
+		else { // other exponents: min. of the least-squares error, refined with the error of the neighboring translations
+			double[] errors = fftSearch.computeSquaredErrors(ip, roiX, roiY, refCache);
+			double minapprox = 0;
+			int peakX = 0;
+			int peakY = 0;
+			for (int xtrans = - range; xtrans <= range; xtrans++) {
+				for (int ytrans = - range; ytrans <= range; ytrans++) {
+					double e = errors[(xtrans + range) * n + ytrans + range];
+					if (Double.isNaN(e)) continue; // Roi outside of the image
+					if (!found || e < minapprox) {
+						found = true;
+						minapprox = e;
+						peakX = xtrans;
+						peakY = ytrans;
+					}
+				}
+			}
+			if (!found) return;
+			double minerror = 0;
+			found = false;
+			for (int xtrans = Math.max(peakX - FFTSearch.REFINE, - range); xtrans <= Math.min(peakX + FFTSearch.REFINE, range); xtrans++) {
+				for (int ytrans = Math.max(peakY - FFTSearch.REFINE, - range); ytrans <= Math.min(peakY + FFTSearch.REFINE, range); ytrans++) {
+					if (Double.isNaN(errors[(xtrans + range) * n + ytrans + range])) continue;
+					double error = kernel.computeError(roiX + xtrans, roiY + ytrans, limit(found, minerror));
+					if (!found || error < minerror) {
+						found = true;
+						minerror = error;
+						bestXcorr = -xtrans;
+						bestYcorr = -ytrans;
+					}
+				}
+			}
+		}
+	}
+
+	public void computeBestCorrPyramid(ImageProcessor ip, int roiX, int roiY) { // same as above using PyramidSearch
+		Point center = pyramidSearch.coarseShift(ip, roiX, roiY, refCache);
+		double minerror = 0;
+		boolean found = false;
+		// refine the result of the downsampled images at full resolution
+		for (int xtrans = Math.max(center.x - PyramidSearch.REFINE, - range); xtrans <= Math.min(center.x + PyramidSearch.REFINE, range); xtrans++) {
+			for (int ytrans = Math.max(center.y - PyramidSearch.REFINE, - range); ytrans <= Math.min(center.y + PyramidSearch.REFINE, range); ytrans++) {
+				double error = kernel.computeError(roiX + xtrans, roiY + ytrans, limit(found, minerror));
+				if (Double.isNaN(error)) continue; // Roi outside of the image
+				if (!found || error < minerror) {
+					found = true;
+					minerror = error;
+					bestXcorr = -xtrans;
+					bestYcorr = -ytrans;
+				}
+			}
+		}
+	}
+
+	public void computeBestCorrSpiral(ImageProcessor ip, int roiX, int roiY) { // same as above with early termination
+		if (!kernel.isInside(roiX - range, roiY - range)) { // NaN error of the first translation: same result as above
+			bestXcorr = range;
+			bestYcorr = range;
+			return;
+		}
+		int n = 2 * range + 1;
+		double minerror = Double.POSITIVE_INFINITY;
+		int minindex = -1; // position of the best translation in the order of the exhaustive search
+		for (int i = 0; i < spiralX.length; i++) {
+			int xtrans = spiralX[i];
+			int ytrans = spiralY[i];
+			// errors > minerror are aborted, they can not be the best translation
+			double error = kernel.computeError(roiX + xtrans, roiY + ytrans, minerror);
+			if (Double.isNaN(error)) continue;
+			int index = (xtrans + range) * n + ytrans + range;
+			if (error < minerror || (error == minerror && index < minindex)) { // same tie-breaking as above
+				minerror = error;
+				minindex = index;
+			}
+		}
+		if (minindex < 0) return;
+		bestXcorr = - (minindex / n - range);
+		bestYcorr = - (minindex % n - range);
+	}
+
+	// same as above, but only the translations within startRange are checked first; as long as the best
+	// one lies on the border of the checked range, the next ring of translations is checked (up to range)
+	public void computeBestCorrAdaptive(ImageProcessor ip, int roiX, int roiY) {
+		int n = 2 * range + 1;
+		double minerror = Double.POSITIVE_INFINITY;
+		int minindex = -1; // position of the best translation in the order of the exhaustive search
+		int i = 0; // next translation in spiral order
+		for (usedRange = startRange; ; usedRange++) {
+			for (; i < (2 * usedRange + 1) * (2 * usedRange + 1); i++) { // translations up to ring usedRange
+				int xtrans = spiralX[i];
+				int ytrans = spiralY[i];
+				double error = kernel.computeError(roiX + xtrans, roiY + ytrans, earlyExit ? minerror : Double.POSITIVE_INFINITY);
+				if (Double.isNaN(error)) continue;
+				int index = (xtrans + range) * n + ytrans + range;
+				if (error < minerror || (error == minerror && index < minindex)) {
+					minerror = error;
+					minindex = index;
+				}
+			}
+			if (usedRange == range) break;
+			// accept the min. if it lies strictly inside of the checked range
+			if (minindex >= 0 && Math.abs(minindex / n - range) < usedRange && Math.abs(minindex % n - range) < usedRange) break;
+		}
+		if (minindex < 0) return; // no translation inside of the image
+		bestXcorr = - (minindex / n - range);
+		bestYcorr = - (minindex % n - range);
+	}
+
+	public void computeSpiral() { // sorts translations by their distance (max. norm) from the center
+		int n = 2 * range + 1;
+		spiralX = new int[n * n];
+		spiralY = new int[n * n];
+		int i = 0;
+		spiralX[i] = 0;
+		spiralY[i++] = 0;
+		for (int ring = 1; ring <= range; ring++) {
+			for (int t = - ring; t < ring; t++) { // four sides of the ring, counter-clockwise
+				spiralX[i] = t;
+				spiralY[i++] = - ring;
+				spiralX[i] = ring;
+				spiralY[i++] = t;
+				spiralX[i] = - t;
+				spiralY[i++] = ring;
+				spiralX[i] = - ring;
+				spiralY[i++] = - t;
+			}
+		}
+	}
+
+	double limit(boolean found, double minerror) { // limit for early termination
+		if (earlyExit && found) return minerror;
+		return Double.POSITIVE_INFINITY;
+	}
+
+	public void computeBestCorrParallel(ImageProcessor ip, int roiX, int roiY) { // same as above using multiple threads
+		// same result as the sequential search: first candidate wins if its error is NaN
+		// (no error is < NaN), otherwise the first candidate with the min. error
+		bestXcorr = range;
+		bestYcorr = range;
+		if (!kernel.isInside(roiX - range, roiY - range)) return;
+		// shared min. error of all threads for early termination
+		AtomicLong bound = earlyExit ? new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY)) : null;
+		Candidate best = pool.invoke(new CandidateRows(ip, roiX, roiY, - range, range, bound)); // every candidate once
+		if (best == null) return;
+		bestXcorr = -best.xtrans;
+		bestYcorr = -best.ytrans;
+	}
+
+	static class Candidate { // translation and its error
+		int xtrans;
+		int ytrans;
+		double error;
+	}
+
+	// checks the translations in rows xtrans = firstRow...lastRow, split into single rows;
+	// returns the first candidate with the min. error (NaN excluded) or null
+	class CandidateRows extends RecursiveTask<Candidate> {
+
+		private static final long serialVersionUID = 1L;
+
+		ImageProcessor ip;
+		int roiX;
+		int roiY;
+		int firstRow;
+		int lastRow;
+		AtomicLong bound; // min. error of all rows so far (as long bits) or null without early termination
+
+		CandidateRows(ImageProcessor ip, int roiX, int roiY, int firstRow, int lastRow, AtomicLong bound) {
+			this.ip = ip;
+			this.roiX = roiX;
+			this.roiY = roiY;
+			this.firstRow = firstRow;
+			this.lastRow = lastRow;
+			this.bound = bound;
+		}
+
+		protected Candidate compute() {
+			if (firstRow < lastRow) {
+				int middle = firstRow + (lastRow - firstRow) / 2;
+				CandidateRows upper = new CandidateRows(ip, roiX, roiY, middle + 1, lastRow, bound);
+				upper.fork();
+				Candidate first = new CandidateRows(ip, roiX, roiY, firstRow, middle, bound).compute();
+				Candidate second = upper.join();
+				// min. reduction, earlier rows win in case of equal errors
+				if (first == null) return second;
+				if (second != null && second.error < first.error) return second;
+				return first;
+			}
+			Candidate best = null;
+			for (int ytrans = - range; ytrans <= range; ytrans++) {
+				double limit = Double.POSITIVE_INFINITY;
+				if (bound != null) limit = Double.longBitsToDouble(bound.get()); // only errors > min. of all rows are aborted
+				double error = kernel.computeError(roiX + firstRow, roiY + ytrans, limit);
+				if (Double.isNaN(error)) continue;
+				if (best == null || error < best.error) {
+					if (best == null) best = new Candidate();
+					best.xtrans = firstRow;
+					best.ytrans = ytrans;
+					best.error = error;
+					if (bound != null) { // update shared min. error
+						long current = bound.get();
+						while (error < Double.longBitsToDouble(current) && !bound.compareAndSet(current, Double.doubleToLongBits(error)))
+							current = bound.get();
+					}
+				}
+			}
+			return best;
+		}
+
+	}
+}
@@ -0,0 +1,135 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.measure.*;
+
+// Statistics of an Alignment_Roi run, one row per searched slice:
+//  - time for reading the slice, for the search and for copying the new
+//    reference (previous slice mode)
+//  - range, translations whose error was computed (candidates) and pixels used
+//    for them, pixels per second of the search. FFT and image pyramid: only
+//    the translations checked at full resolution are counted.
+//  - with the error surface: error of all translations within the range after
+//    the search (not included in the search time); min. error, runner-up (min.
+//    error of the translations that are no direct neighbors of the best one)
+//    and margin between them in % of the runner-up. A small margin means that
+//    another, separate position matches almost as well (ambiguous match).
+// The last rows add up the search and apply stages (apply: translating the
+// stack in place or writing the aligned stack to a file).
+public class AlignmentStatistics {
+
+	static final String[] MODES = {"none", "timing", "timing and error surface"};
+
+	boolean errorSurface; // compute the error surface for every slice
+	ResultsTable rt = new ResultsTable();
+	long searchTime; // sum of all slices, ns
+	long searchPixels;
+	int searchSlices;
+	boolean referencePending; // the last slice may become the next reference
+	int referenceSlice; // k nearest slices mode: slice compared with the following ones (0: other modes)
+
+	public AlignmentStatistics(boolean errorSurface) {
+		this.errorSurface = errorSurface;
+		rt.setNaNEmptyCells(true);
+	}
+
+	// times in ns, shift of the Roi from the previous slice; minError, runnerUp NaN without error surface
+	public void addSlice(int slice, long readTime, long searchTime, int range, long candidates, long pixels,
+		int shiftX, int shiftY, double minError, double runnerUp) {
+		rt.incrementCounter();
+		rt.addLabel("slice " + slice);
+		rt.addValue("Slice", slice);
+		if (referenceSlice > 0) rt.addValue("Reference slice", referenceSlice);
+		rt.addValue("Read (ms)", readTime / 1e6);
+		rt.addValue("Search (ms)", searchTime / 1e6);
+		rt.addValue("Reference (ms)", 0);
+		rt.addValue("Range", range);
+		rt.addValue("Candidates", candidates);
+		rt.addValue("Pixels", pixels);
+		rt.addValue("Mpx/s", searchTime > 0 ? pixels * 1e3 / searchTime : Double.NaN);
+		rt.addValue("X shift", shiftX);
+		rt.addValue("Y shift", shiftY);
+		if (errorSurface) {
+			rt.addValue("Min. error", minError);
+			rt.addValue("Runner-up error", runnerUp);
+			rt.addValue("Margin (%)", runnerUp > 0 ? 100 * (runnerUp - minError) / runnerUp : Double.NaN);
+		}
+		this.searchTime += searchTime;
+		searchPixels += pixels;
+		searchSlices++;
+		referencePending = true;
+	}
+
+	// time for copying the last slice to the reference (ns); other references
+	// (first one, reset to the start slice) are not counted
+	public void addReferenceTime(long time) {
+		if (!referencePending) return;
+		rt.setValue("Reference (ms)", rt.size() - 1, time / 1e6);
+		referencePending = false;
+	}
+
+	// adds the slice rows of another run (e.g. a chunk of slices tracked in parallel)
+	public void add(AlignmentStatistics other) {
+		ResultsTable table = other.rt;
+		String[] headings = table.getHeadings();
+		for (int row = 0; row < table.size(); row++) {
+			rt.incrementCounter();
+			rt.addLabel(table.getLabel(row));
+			for (String heading : headings) {
+				if (!heading.equals("Label")) rt.addValue(heading, table.getValue(heading, row));
+			}
+		}
+		searchTime += other.searchTime;
+		searchPixels += other.searchPixels;
+		searchSlices += other.searchSlices;
+	}
+
+	// sums of the search stage
+	public void addSearchTotal() {
+		referencePending = false;
+		rt.incrementCounter();
+		rt.addLabel("search (" + searchSlices + " slices)");
+		rt.addValue("Search (ms)", searchTime / 1e6);
+		rt.addValue("Pixels", searchPixels);
+		rt.addValue("Mpx/s", searchTime > 0 ? searchPixels * 1e3 / searchTime : Double.NaN);
+	}
+
+	// time in ns for an apply stage that moved the given number of pixels
+	public void addApply(String stage, long time, long pixels) {
+		rt.incrementCounter();
+		rt.addLabel("apply (" + stage + ")");
+		rt.addValue("Apply (ms)", time / 1e6);
+		rt.addValue("Pixels", pixels);
+		rt.addValue("Mpx/s", time > 0 ? pixels * 1e3 / time : Double.NaN);
+	}
+
+	public ResultsTable getTable() {
+		return rt;
+	}
+
+	// min. error at the best translation (bestIndex) and runner-up of an error surface
+	// (n x n translations, index = (xtrans + r) * n + ytrans + r with n = 2 * r + 1, NaN: outside of the image)
+	static double[] minAndRunnerUp(double[] errors, int n, int bestIndex) {
+		double runnerUp = Double.NaN;
+		int bestX = bestIndex / n;
+		int bestY = bestIndex % n;
+		for (int i = 0; i < errors.length; i++) {
+			if (Math.abs(i / n - bestX) <= 1 && Math.abs(i % n - bestY) <= 1) continue; // best one and its neighbors
+			if (errors[i] < runnerUp || (Double.isNaN(runnerUp) && !Double.isNaN(errors[i]))) runnerUp = errors[i];
+		}
+		return new double[] {errors[bestIndex], runnerUp};
+	}
+
+}
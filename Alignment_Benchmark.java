@@ -0,0 +1,308 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.plugin.*;
+import ij.process.*;
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Benchmark for the search and apply stages of Alignment_Roi on synthetic
+// stacks (textured images, randomly shifted from slice to slice). Every
+// combination of image type, Roi size, range, error exponent, search method
+// and plugin mode is run a few times without measuring (warmup of the JIT
+// compiler) and then measured; the median and min. time per slice are listed
+// in the "Alignment Benchmark" table. The apply stage (StackTranslator and
+// reading all slices of an AlignedVirtualStack) is measured for every type.
+// Runs as a plugin (parameters from the dialog or macro options) or from the
+// command line without ImageJ window (default parameters, table printed to
+// stdout), e.g. before and after a change of the kernels:
+//   java -cp ij.jar:. Alignment_Benchmark
+// The scalar and vector kernels are compared if VectorKernel is compiled and
+// the Vector API module is added (--add-modules jdk.incubator.vector),
+// otherwise both rows use the scalar kernel (see column "Kernel").
+// The same stacks and stages are measured with JMH by the benchmarks module
+// (benchmarks/pom.xml, see searchTask and applyTask).
+public class Alignment_Benchmark implements PlugIn {
+
+	static final long SEED = 1; // same stacks for every run
+
+	int size = 512; // width and height of the synthetic images
+	int slices = 20;
+	String types = "8-bit,16-bit,32-bit,RGB";
+	String roiSizes = "32,64,128";
+	String ranges = "5,10";
+	String exponents = "2,1";
+	String methods = "exhaustive,FFT,image pyramid";
+	String modes = "selected slice,previous slice";
+	String kernels = "scalar,vector"; // vector: VectorKernel if available (exponents 1 and 2)
+	int threads = 1;
+	boolean earlyExit = true;
+	int warmup = 2; // runs that are not measured
+	int runs = 5; // measured runs
+	String usedKernel; // class of the error kernel of the last search
+
+	public static void main(String[] args) {
+		Alignment_Benchmark benchmark = new Alignment_Benchmark();
+		ResultsTable rt = benchmark.runAll();
+		System.out.println(rt.getColumnHeadings());
+		for (int i = 0; i < rt.getCounter(); i++) {
+			System.out.println(rt.getRowAsString(i));
+		}
+	}
+
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Alignment Benchmark");
+		gd.addNumericField("Image size (px)", size, 0);
+		gd.addNumericField("Slices", slices, 0);
+		gd.addStringField("Image types", types, 30);
+		gd.addStringField("Roi sizes (px)", roiSizes, 30);
+		gd.addStringField("Ranges (px)", ranges, 30);
+		gd.addStringField("Error exponents", exponents, 30);
+		gd.addStringField("Search methods", methods, 30);
+		gd.addStringField("Compare with", modes, 30);
+		gd.addStringField("Error kernels", kernels, 30);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.addCheckbox("Early termination", earlyExit);
+		gd.addNumericField("Warmup runs", warmup, 0);
+		gd.addNumericField("Measured runs", runs, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+
+		size = (int) gd.getNextNumber();
+		slices = (int) gd.getNextNumber();
+		types = gd.getNextString();
+		roiSizes = gd.getNextString();
+		ranges = gd.getNextString();
+		exponents = gd.getNextString();
+		methods = gd.getNextString();
+		modes = gd.getNextString();
+		kernels = gd.getNextString();
+		threads = Math.max(1, (int) gd.getNextNumber());
+		earlyExit = gd.getNextBoolean();
+		warmup = (int) gd.getNextNumber();
+		runs = Math.max(1, (int) gd.getNextNumber());
+
+		runAll().show("Alignment Benchmark");
+		IJ.showStatus("");
+	}
+
+	// runs all combinations of the parameters, one row per combination
+	ResultsTable runAll() {
+		ResultsTable rt = new ResultsTable();
+		for (String type : split(types)) {
+			ImagePlus imp = syntheticStack(type);
+			for (String roi : split(roiSizes)) {
+				for (String range : split(ranges)) {
+					for (String exponent : split(exponents)) {
+						for (String method : split(methods)) {
+							for (String mode : split(modes)) {
+								for (String kernel : split(kernels)) {
+									IJ.showStatus("Benchmark: " + type + ", Roi " + roi + ", range " + range + ", " + method + ", " + mode + ", " + kernel);
+									int roiSize = Integer.parseInt(roi);
+									int r = Integer.parseInt(range);
+									double power = Double.parseDouble(exponent);
+									double[] times = measureSearch(imp, roiSize, r, power, method, mode.startsWith("previous"), kernel.equals("vector"));
+									addRow(rt, type, "search", roiSize, r, power, method, mode, usedKernel, times);
+								}
+							}
+						}
+					}
+				}
+			}
+			addRow(rt, type, "apply (in place)", 0, 0, 0, "", "", "", measureTranslation(imp));
+			addRow(rt, type, "apply (virtual stack)", 0, 0, 0, "", "", "", measureVirtualStack(imp));
+		}
+		return rt;
+	}
+
+	// time per slice in ms of every measured run of the search
+	double[] measureSearch(ImagePlus imp, int roiSize, int range, double power, String method, boolean prevSlice, boolean vector) {
+		double[] times = new double[runs];
+		for (int run = - warmup; run < runs; run++) {
+			AlignmentEngine engine = createEngine(imp, roiSize, range, power, method, prevSlice);
+			engine.vectorKernel = vector;
+			long start = System.nanoTime();
+			engine.align();
+			long time = System.nanoTime() - start;
+			usedKernel = engine.kernel.getClass().getSimpleName();
+			if (run >= 0) times[run] = time / 1e6 / (slices - 1);
+		}
+		return times;
+	}
+
+	// AlignmentEngine with the parameters of the dialog, Roi in the center of the image
+	AlignmentEngine createEngine(ImagePlus imp, int roiSize, int range, double power, String method, boolean prevSlice) {
+		AlignmentEngine engine = new AlignmentEngine(imp.getStack(), new Rectangle((size - roiSize) / 2, (size - roiSize) / 2, roiSize, roiSize));
+		engine.range = range;
+		engine.power = power;
+		engine.searchMethod = method;
+		engine.threads = threads;
+		engine.earlyExit = earlyExit;
+		engine.prevSlice = prevSlice;
+		engine.lastSlice = slices;
+		return engine;
+	}
+
+	// search or apply stage with one combination of the parameters, for the JMH benchmarks
+	// (benchmarks/), which load this class by name (no imports from the default package):
+	// every call of the task runs the stage once on the synthetic stack of the type
+	public Callable<Object> searchTask(String type, final int roiSize, final int range, final double power,
+		final String method, final String mode, final boolean vector) {
+		final ImagePlus imp = syntheticStack(type);
+		return new Callable<Object>() {
+			public Object call() {
+				AlignmentEngine engine = createEngine(imp, roiSize, range, power, method, mode.startsWith("previous"));
+				engine.vectorKernel = vector;
+				return engine.align();
+			}
+		};
+	}
+
+	// virtual: reading all slices of an AlignedVirtualStack, otherwise translating all slices in place
+	public Callable<Object> applyTask(String type, boolean virtual) {
+		final ImageStack stack = syntheticStack(type).getStack();
+		final int[][] shifts = randomShifts();
+		if (virtual) {
+			final AlignedVirtualStack aligned = new AlignedVirtualStack(stack, shifts[0], shifts[1]);
+			return new Callable<Object>() {
+				public Object call() {
+					ImageProcessor ip = null;
+					for (int n = 1; n <= slices; n++) ip = aligned.getProcessor(n);
+					return ip;
+				}
+			};
+		}
+		return new Callable<Object>() {
+			public Object call() {
+				new StackTranslator(null).translate(stack, shifts[0], shifts[1]);
+				return stack;
+			}
+		};
+	}
+
+	// translations of the apply stage, up to +-10 px, same in every run
+	int[][] randomShifts() {
+		int[][] shifts = new int[2][slices];
+		Random random = new Random(SEED);
+		for (int i = 0; i < slices; i++) {
+			shifts[0][i] = random.nextInt(21) - 10;
+			shifts[1][i] = random.nextInt(21) - 10;
+		}
+		return shifts;
+	}
+
+	// time per slice in ms of translating all slices in place
+	double[] measureTranslation(ImagePlus imp) {
+		ImageStack copy = imp.duplicate().getStack();
+		int[][] shifts = randomShifts();
+		int[] dx = shifts[0];
+		int[] dy = shifts[1];
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		double[] times = new double[runs];
+		for (int run = - warmup; run < runs; run++) {
+			long start = System.nanoTime();
+			new StackTranslator(pool).translate(copy, dx, dy);
+			long time = System.nanoTime() - start;
+			if (run >= 0) times[run] = time / 1e6 / slices;
+		}
+		if (pool != null) pool.shutdown();
+		return times;
+	}
+
+	// time per slice in ms of reading all slices of an AlignedVirtualStack
+	double[] measureVirtualStack(ImagePlus imp) {
+		int[][] shifts = randomShifts();
+		AlignedVirtualStack aligned = new AlignedVirtualStack(imp.getStack(), shifts[0], shifts[1]);
+		double[] times = new double[runs];
+		for (int run = - warmup; run < runs; run++) {
+			long start = System.nanoTime();
+			for (int n = 1; n <= slices; n++) aligned.getProcessor(n);
+			long time = System.nanoTime() - start;
+			if (run >= 0) times[run] = time / 1e6 / slices;
+		}
+		return times;
+	}
+
+	void addRow(ResultsTable rt, String type, String stage, int roiSize, int range, double power,
+		String method, String mode, String kernel, double[] times) {
+		double[] sorted = times.clone();
+		Arrays.sort(sorted);
+		rt.incrementCounter();
+		rt.addLabel(type + " " + stage);
+		rt.addValue("Roi", roiSize);
+		rt.addValue("Range", range);
+		rt.addValue("Exponent", power);
+		rt.addValue("Method", method);
+		rt.addValue("Compare with", mode);
+		rt.addValue("Kernel", kernel);
+		rt.addValue("Threads", threads);
+		rt.addValue("Median (ms/slice)", sorted[sorted.length / 2]);
+		rt.addValue("Min (ms/slice)", sorted[0]);
+		rt.addValue("Slices/s", 1000 / sorted[sorted.length / 2]);
+	}
+
+	// textured image (sums of sines and noise), every slice shifted by up to +-3 px
+	ImagePlus syntheticStack(String type) {
+		Random random = new Random(SEED);
+		int margin = 4;
+		int fullSize = size + 2 * margin;
+		float[] texture = new float[fullSize * fullSize];
+		for (int y = 0; y < fullSize; y++) {
+			for (int x = 0; x < fullSize; x++) {
+				texture[y * fullSize + x] = (float) (100 + 40 * Math.sin(x * 0.13) * Math.cos(y * 0.11)
+					+ 30 * Math.sin((x + 2 * y) * 0.037) + 10 * random.nextGaussian());
+			}
+		}
+		ImageStack stack = new ImageStack(size, size);
+		for (int n = 0; n < slices; n++) {
+			int dx = random.nextInt(7) - 3;
+			int dy = random.nextInt(7) - 3;
+			FloatProcessor fp = new FloatProcessor(size, size);
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++) {
+					fp.setf(x, y, texture[(y + margin + dy) * fullSize + x + margin + dx]);
+				}
+			}
+			ImageProcessor ip;
+			if (type.startsWith("8")) ip = fp.convertToByte(false);
+			else if (type.startsWith("16")) {
+				fp.multiply(100);
+				ip = fp.convertToShort(false);
+			} else if (type.startsWith("RGB")) {
+				ColorProcessor cp = new ColorProcessor(size, size);
+				ImageProcessor red = fp.convertToByte(false);
+				fp.multiply(0.8);
+				ImageProcessor green = fp.convertToByte(false);
+				fp.add(30);
+				ImageProcessor blue = fp.convertToByte(false);
+				cp.setRGB((byte[]) red.getPixels(), (byte[]) green.getPixels(), (byte[]) blue.getPixels());
+				ip = cp;
+			} else ip = fp;
+			stack.addSlice("" + (n + 1), ip);
+		}
+		return new ImagePlus("Benchmark " + type, stack);
+	}
+
+	static String[] split(String list) {
+		String[] items = list.split(",");
+		for (int i = 0; i < items.length; i++) items[i] = items[i].trim();
+		return items;
+	}
+
+}
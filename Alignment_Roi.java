@@ -16,42 +16,38 @@ Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
 import ij.*;
 import ij.io.*;
 import ij.gui.*;
+import ij.measure.*;
 import ij.process.*;
 import ij.plugin.filter.*;
+import ij.plugin.frame.*;
 import java.awt.*;
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.*;
 
+// Dialog and output of the alignment; the corrections are computed by AlignmentEngine.
+// The parameters can be given as macro options (recorded by the macro recorder). Without
+// a display (java -Djava.awt.headless=true), they are read from the macro options only, with
+// the same keys as recorded from the dialog; file paths: multistackreg=[...], tiff=[...], csv=[...].
 public class Alignment_Roi implements PlugInFilter {
 
 	ImagePlus imp;
+	ImageStack stack; // slices are read from the stack, the displayed slice is not changed
 	int stackSize;
 	int selectedSlice; // index of selected slice when plugin is started
 
 	Rectangle roiRect; // Roi
-	int roiWidth;
-	int roiHeight;
+	HyperstackView view; // hyperstacks: time points searched by the engine (null for other stacks)
 
-	double[][] refImage; // pixel array for error computation
-	int[] correctionX; // array for corrections in x direction
-	int[] correctionY; // array for corrections in y direction
+	AlignmentEngine engine; // search parameters and computation of the corrections
+	Corrections corrections; // result of the engine
 
 	// plugin parameters
 
-	int range; // range of possible translations that are checked
-	double power; // loading of error
-	int firstSlice; // index of first corrected slice
-	int lastSlice; // index of last corrected slice
-	String adjustTo; // contains answer to "adjust to" choice
-	boolean correctPrevious; // whether slices before firstSlice should be corrected
-	boolean correctFollowing; // same for slices after lastSlice
-	boolean prevSlice; // for compare to previous slice mode
-	double minerror; // min. of computed errors
-	int bestXcorr; // correction with least error sum
-	int bestYcorr;
-	int refSlice; // index of start slice / slice for refImage
 	boolean saveFile; // -> save in MultiStackReg File
 	boolean doTranslate; // -> apply corrections
+	boolean virtualOutput; // -> show the corrections as a new virtual stack instead of changing the image
+	boolean writeFile; // -> write the translated slices to a new TIFF file, one at a time
+	boolean saveStatistics; // -> save the statistics as CSV file
 
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
@@ -59,401 +55,343 @@ public class Alignment_Roi implements PlugInFilter {
 	}
 
 	public void run(ImageProcessor ip) {
+	ForkJoinPool pool = null; // thread pool for the translation
 	try {
 		// get Roi
 		roiRect = imp.getRoi().getBounds();
-		int roiX = (int) roiRect.getX();
-		int roiY = (int) roiRect.getY();
-		roiWidth = (int) roiRect.getWidth();
-		roiHeight = (int) roiRect.getHeight();
-		//IJ.showMessage(roiWidth + " x " + roiHeight + " at " + roiX + ", " + roiY);	// uncomment to check Roi
+		//IJ.showMessage(roiRect.width + " x " + roiRect.height + " at " + roiRect.x + ", " + roiRect.y);	// uncomment to check Roi
 
 		// get number of slices and currently selected slice
-		stackSize = imp.getStack().getSize();
-		selectedSlice = imp.getSlice();
-		
-		//
-		// dialog for plugin parameters
-		//
-
-		GenericDialog gd = new GenericDialog("Alignment");
-
-		gd.addNumericField("Range (px): +-", 5, 0); // range of checked corrections
-		gd.addNumericField("Error exponent", 2.0, 2); // error loading
-	
-		// plugin mode: compare all slices with selected slice or with their neighbor
-		String[] choices = {"selected slice", "previous slice"};
-		gd.addChoice("Compare with...", choices, "selected slice");
-
-		// range of corrected slices
-		gd.addNumericField("Correct translation from slice", 1, 0);
-		gd.addNumericField("to", stackSize, 0);
-
-		// set reference slice with correction (0, 0): first slice, last slice or current slice
-		String[] choices2 = {"first slice of range", "last slice of range", "currently selected slice"};
-		gd.addChoice("Adjust to...", choices2, "first slice of range");
-
-		// correct head and tail options
-		gd.addCheckbox("Correct previous slices", false);
-		gd.addCheckbox("Correct following slices", false);
-
-		// save MultiStackReg file option
-		gd.addCheckbox("Save MultiStackReg File", false);
+		stack = imp.getStack();
+		stackSize = stack.getSize();
+		selectedSlice = imp.getCurrentSlice();
+		if (HyperstackView.isHyperstack(imp)) { // one translation per time point
+			view = new HyperstackView(imp);
+			selectedSlice = HyperstackView.getPosition(imp);
+		}
+		engine = new AlignmentEngine(view != null ? view : stack, roiRect);
+		engine.selectedSlice = selectedSlice;
 
-		// apply translations option
-		gd.addCheckbox("Apply translations", true);
-		
-		// show dialog
-		gd.showDialog();
-		if (gd.wasCanceled()) {
+		// parameters from the dialog or, without display, from the macro options
+		String options = Macro.getOptions();
+		if (options != null && GraphicsEnvironment.isHeadless()) readOptions(options);
+		else if (!showDialog()) {
 			IJ.error("Plugin canceled!");
 			return;
 		}
-
-		// get values from dialog
-
-		range = (int) gd.getNextNumber();
-		power = gd.getNextNumber(); // error loading
-		if (gd.getNextChoiceIndex() == 1) prevSlice = true; else prevSlice = false; // plugin mode
-
-		// range of slices
-		firstSlice = (int) gd.getNextNumber();
-		lastSlice = (int) gd.getNextNumber();
+		if (view == null || !view.isProjection()) engine.setPixelValues(ip); // same pixel values as in the image window
 
 		// correct some errors in user input
-		if (firstSlice > lastSlice) { // correct invalid range: swap first and last slice
+		if (engine.firstSlice > engine.lastSlice) { // correct invalid range: swap first and last slice
 			IJ.showMessage("Hint", "Range of slices is invalid. Range will be turned the other way round.");
 			int temp;
-			temp = firstSlice;	// swap first and last slice
-			firstSlice = lastSlice;
-			lastSlice = temp;
+			temp = engine.firstSlice;	// swap first and last slice
+			engine.firstSlice = engine.lastSlice;
+			engine.lastSlice = temp;
 		}
-		if (firstSlice < 1) { // if start of range is invalid
-			firstSlice = 1;
+		if (engine.firstSlice < 1) { // if start of range is invalid
+			engine.firstSlice = 1;
 			IJ.showMessage("Hint", "Range of slices is invalid. Beginning of range is corrected to first slice.");
 		}
-		if (lastSlice > stackSize) { // if end of range is invalid
-			lastSlice = stackSize;
+		if (engine.lastSlice > engine.stackSize) { // if end of range is invalid
+			engine.lastSlice = engine.stackSize;
 			IJ.showMessage("Hint", "Range of slices is invalid. End of range is corrected to last possible slice.");
 		}
 
-		adjustTo = gd.getNextChoice(); // adjust to... option
-		correctPrevious = gd.getNextBoolean(); // correct slices before range
-		correctFollowing = gd.getNextBoolean(); // correct slices after range
-		saveFile = gd.getNextBoolean(); // save to MultiStackReg file checkbox
-		doTranslate = gd.getNextBoolean(); // whether translations are applied
-
 		// cancel plugin if results would never be used
-		if (!(saveFile || doTranslate)) {
+		if (!(saveFile || doTranslate || writeFile)) {
 			IJ.error("Please choose at least 'Apply translations' or file output. Plugin canceled.");
 			return;
 		}
 
 		// avoid problems with invalid refSlice, adjustSlice
-		if (selectedSlice > lastSlice || selectedSlice < firstSlice) {
+		if (selectedSlice > engine.lastSlice || selectedSlice < engine.firstSlice) {
 			IJ.error(
 			"Error: currently selected slice is beyond entered range. Set Roi in a slice which has to be corrected and restart Plugin.");
 			return;
 		}
 		IJ.showStatus("Computing corrections. Please wait...");
 		
+		corrections = engine.align();
+		int[] correctionX = corrections.getX();
+		int[] correctionY = corrections.getY();
+		if (view != null) { // same translation for all channels and planes of a time point
+			correctionX = HyperstackView.expand(imp, correctionX);
+			correctionY = HyperstackView.expand(imp, correctionY);
+		}
+		if (engine.fromCache) IJ.log("Alignment: corrections of an earlier run read from the cache (" + engine.cache.directory + ")");
+		if (engine.neighbors > 0) IJ.log("Alignment: least-squares fit of the shifts to " + engine.neighbors + " following slices, rms deviation " + IJ.d2s(corrections.fitResidual, 2) + " px");
+		if (engine.searchMethod.equals("FFT") && engine.fftSearch == null)
+			IJ.log("Alignment: FFT search not used with normalized cross-correlation, all translations are checked");
+		if (engine.vectorKernel && !engine.kernel.getClass().getName().equals("VectorKernel"))
+			IJ.log("Alignment: Vector API kernel not used (only for exponents 1 and 2 of uncalibrated 8, 16 and 32 bit images, needs jdk.incubator.vector)");
+
+		// report the range checked for every slice
+		if (engine.startRange > 0) corrections.getTable().show("Alignment Ranges");
+
 		//
-		// arrays for x and y correcions
+		// save MultiStackReg file
 		//
 
-		correctionX = new int[stackSize];
-		correctionY = new int[stackSize];
+		if (saveFile) { // hyperstacks: one transformation per time point
+			String path = getSavePath("multistackreg", "Save MultiStackReg File...", "translations", ".txt");
+			if (path == null) return;
+			try {
+				corrections.saveMultiStackReg(path, ip.getWidth(), ip.getHeight());
+			} catch (IOException e) {IJ.showMessage("Saving MultiStackReg File failed.");}
+		}
 
 		//
-		// compute corrections
+		// apply corrections
 		//
-		
-		// use firstSlice as first reference slice in previous slice mode
-		if (prevSlice) imp.setSlice(firstSlice);
-
-		// copy values from reference image to 2d array
-		refImage = new double[roiWidth][roiHeight];
-		for (int i = 0; i < roiWidth; i++) {
-		  for (int j = 0; j < roiHeight; j++) {
-			  refImage[i][j] = ip.getPixelValue(roiX + i, roiY + j);
-		  }
+
+		AlignmentStatistics statistics = engine.statistics;
+		if (writeFile) { // each slice is read, translated and written to a mapped buffer before the next one is read
+			String path = getSavePath("tiff", "Save Aligned Stack...", imp.getShortTitle() + "-aligned", ".tif");
+			if (path != null) {
+				IJ.showStatus("Writing aligned stack...");
+				try {
+					long start = System.nanoTime();
+					MappedStackWriter writer = new MappedStackWriter(stack, imp.getCalibration());
+					if (view != null) writer.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+					writer.writeTranslated(stack, correctionX, correctionY, path);
+					if (statistics != null) statistics.addApply("file", System.nanoTime() - start, stackPixels());
+				} catch (IOException e) {IJ.showMessage("Saving aligned stack failed.");}
+			}
 		}
 
-		if (prevSlice) { // prevSlice mode
+		// slices of a virtual stack are read from disk again when they are displayed,
+		// so they can not be translated in place
+		if (stack.isVirtual()) virtualOutput = true;
 
-			refSlice = selectedSlice;
-			correctionX[0] = 0;
-			correctionY[0] = 0;
+		if (doTranslate && virtualOutput) { // slices are translated when they are displayed
+			ImagePlus aligned = new ImagePlus(imp.getShortTitle() + "-aligned", new AlignedVirtualStack(stack, correctionX, correctionY));
+			aligned.setCalibration(imp.getCalibration());
+			if (view != null) {
+				aligned.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+				aligned.setOpenAsHyperStack(true);
+			}
+			aligned.show();
+		}
 
-			if (refSlice < lastSlice) // avoid exception when refSlice == lastSlice
-			for (int slice = refSlice + 1; slice <= lastSlice; slice++) { // for every slice do...
+		if (doTranslate && !virtualOutput) {		
+			imp.unlock();
+			imp.killRoi();	
+			IJ.showStatus("Translating Images...");		
+		
+			long start = System.nanoTime();
+			if (engine.threads > 1) pool = new ForkJoinPool(engine.threads);
+			new StackTranslator(pool).translate(stack, correctionX, correctionY);
+			if (statistics != null) statistics.addApply("in place", System.nanoTime() - start, stackPixels());
+			imp.changes = true;
+			imp.updateAndDraw();
+		
+			IJ.showStatus("");
+			imp.setRoi(roiRect);
+		}
 
-				computeBestCorr(ip, slice, roiX, roiY);
+		if (pool != null) pool.shutdown();
 
-				if (slice == refSlice + 1) { // first iteration: use correction to initialize bestXcorr, bestYcorr
-					correctionX[slice-1] = bestXcorr;
-					correctionY[slice-1] = bestYcorr;
-				}
-				else {
-					correctionX[slice-1] = correctionX[slice-2] + bestXcorr; // absolute correction of slice
-					correctionY[slice-1] = correctionY[slice-2] + bestYcorr; // uses correction of previous slice
-				}
+		if (statistics != null) showStatistics();
 
-				roiX -= bestXcorr; // Roi adjustment: Roi moves, corrections are relative to previous slice
-				roiY -= bestYcorr;
+		IJ.showStatus("");
+		imp.setRoi(roiRect);
+		
+	} catch (IllegalArgumentException e) { // invalid parameters
+		if (pool != null) pool.shutdown();
+		IJ.error("Alignment", e.getMessage());
+		IJ.showStatus("");
+	} catch (Exception e) {
+		if (pool != null) pool.shutdown();
+		IJ.showMessage("Error! Check Image and Roi."); 
+		IJ.showStatus("");
+	}
 
-				// copy current image to refImage
-				for (int i = 0; i < roiWidth; i++) {
-			  		for (int j = 0; j < roiHeight; j++) {
-				 	 refImage[i][j] = ip.getPixelValue(roiX + i, roiY + j);
-			 		}
-				}
-			}
+	} // end of run method
 
-			// reset Roi (begin at refSlice again)
-			roiX = (int) roiRect.getX();
-			roiY = (int) roiRect.getY();
-			// reset refImage
-			imp.setSlice(refSlice);
-			for (int i = 0; i < roiWidth; i++) {
-				for (int j = 0; j < roiHeight; j++) {
-			 	 refImage[i][j] = ip.getPixelValue(roiX + i, roiY + j);
-				}
-			}
-			
-			// same procedure as above in other direction:
-
-			if (refSlice > firstSlice) // avoid exception when refSlice == firstSlice
-			for (int slice = refSlice -1; slice >= firstSlice; slice--) {	// for every slice do...
-
-				computeBestCorr(ip, slice, roiX, roiY);
-
-				if (slice == firstSlice - 1) {
-					correctionX[slice-1] = bestXcorr;
-					correctionY[slice-1] = bestYcorr;
-				}
-				else {
-					correctionX[slice-1] = correctionX[slice] + bestXcorr;
-					correctionY[slice-1] = correctionY[slice] + bestYcorr;
-				}
-
-				roiX -= bestXcorr;
-				roiY -= bestYcorr;
-
-				// copy current image to refImage
-				for (int i = 0; i < roiWidth; i++) {
-			  		for (int j = 0; j < roiHeight; j++) {
-				 	 refImage[i][j] = ip.getPixelValue(roiX + i, roiY + j);
-			 		}
-				}
-			}
+	// dialog for plugin parameters (also reads the macro options if the plugin is called from a macro);
+	// returns false if canceled
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Alignment");
 
+		// hyperstacks: slices of the time points that are searched
+		if (view != null) {
+			gd.addNumericField("Align channel", view.channel, 0);
+			if (view.alongFrames && imp.getNSlices() > 1) gd.addChoice("Z plane", HyperstackView.PLANES, HyperstackView.PLANES[0]);
 		}
 
-		else { // compare with selected slice mode
-
-			refSlice = selectedSlice; 
-			correctionX[refSlice-1] = 0; // correction of refSlice is (0, 0)
-			correctionY[refSlice-1] = 0;
-
-			if (refSlice > 1)
-			for (int slice = refSlice-1; slice >= firstSlice; slice--) { // go down starting from selected slice
-
-				computeBestCorr(ip, slice, roiX, roiY);
-				roiX -= bestXcorr;
-				roiY -= bestYcorr;
-				if (slice == refSlice-1) {
-					correctionX[slice-1] = bestXcorr;
-					correctionY[slice-1] = bestYcorr;
-				}
-				else {
-					correctionX[slice-1] = correctionX[slice] + bestXcorr;
-					correctionY[slice-1] = correctionY[slice] + bestYcorr;
-				}
-			}
+		gd.addNumericField("Range (px): +-", 5, 0); // range of checked corrections
+		gd.addNumericField("Adaptive start range (px, 0 = off)", 0, 0); // range grows only if necessary
+		gd.addNumericField("Error exponent", 2.0, 2); // error loading
 
+		// error metric: sum of |difference|^exponent, least squares or normalized cross-correlation
+		// (for brightness changes between slices), the latter two using integral images
+		gd.addChoice("Error metric", AlignmentEngine.METRICS, "error exponent");
 
-			// reset Roi (beginning from refSlice again)
-			roiX = (int) roiRect.getX();
-			roiY = (int) roiRect.getY();			
-		
-			if (refSlice < lastSlice)
-			for (int slice = refSlice+1; slice <= lastSlice; slice++) { // go up starting from selected slice
-
-				computeBestCorr(ip, slice, roiX, roiY);
-				roiX -= bestXcorr;
-				roiY -= bestYcorr;
-				if (slice == refSlice+1) {
-					correctionX[slice-1] = bestXcorr;
-					correctionY[slice-1] = bestYcorr;
-				}
-				else {
-					correctionX[slice-1] = correctionX[slice-2] + bestXcorr;
-					correctionY[slice-1] = correctionY[slice-2] + bestYcorr;
-				}
-			}
-			
-		}
+		// search method: check every translation, compute all of them at once in Fourier space
+		// or search on downsampled images first
+		gd.addChoice("Search method", AlignmentEngine.SEARCH_METHODS, "exhaustive");
+		gd.addNumericField("Threads", Prefs.getThreads(), 0); // threads for the exhaustive search and the translation
+		gd.addCheckbox("Early termination", true); // skip bad translations as soon as possible
+		gd.addCheckbox("Vector API kernel (SIMD)", false); // exponents 1 and 2, needs jdk.incubator.vector
+	
+		// plugin mode: compare all slices with selected slice or with their neighbor
+		// or with the following k slices, corrections from a least-squares fit of all shifts
+		gd.addChoice("Compare with...", AlignmentEngine.MODES, "selected slice");
+		gd.addCheckbox("Parallel chunks (previous slice mode)", false); // one chunk of slices per thread
+		gd.addNumericField("Nearest slices k (global fit)", 3, 0);
 
-		//
-		// adjust to another slice than refSlice
-		//
+		// center the search on the position predicted from the previous shifts
+		gd.addChoice("Motion prediction", MotionPredictor.METHODS, "none");
 
-		int adjustSlice = firstSlice; // default initialization
+		// reuse the search results of an earlier run with the same stack and parameters
+		gd.addCheckbox("Cache corrections on disk", false);
 
-		// use choice "Adjust to..."
-		if (adjustTo.equals("last slice of range")) adjustSlice = lastSlice;
-		if (adjustTo.equals("currently selected slice")) adjustSlice = selectedSlice;
+		// range of corrected slices
+		gd.addNumericField("Correct translation from slice", 1, 0);
+		gd.addNumericField("to", engine.stackSize, 0);
 
-		// use offset of adjustSlice
-		int offsetX = correctionX[adjustSlice-1];
-		int offsetY = correctionY[adjustSlice-1];
-		for (int i = firstSlice; i <= lastSlice; i++) {
-			correctionX[i-1] -= offsetX;
-			correctionY[i-1] -= offsetY;
-		}
+		// set reference slice with correction (0, 0): first slice, last slice or current slice
+		gd.addChoice("Adjust to...", AlignmentEngine.ADJUST_CHOICES, "first slice of range");
 
-		//
-		// correct previous and correct following slices
-		//
+		// correct head and tail options
+		gd.addCheckbox("Correct previous slices", false);
+		gd.addCheckbox("Correct following slices", false);
 
-		if (correctPrevious) {
-			for (int i = 1; i < firstSlice; i++) {
-				correctionX[i-1] = correctionX[firstSlice-1];
-				correctionY[i-1] = correctionY[firstSlice-1];
-			}
-		}
-		if (correctFollowing) {
-			for (int i = lastSlice; i <= stackSize; i++) {
-				correctionX[i-1] = correctionX[lastSlice-1];
-				correctionY[i-1] = correctionY[lastSlice-1];
-			}
-		}
+		// save MultiStackReg file option
+		gd.addCheckbox("Save MultiStackReg File", false);
 
-		//
-		// save MultiStackReg file
-		//
+		// apply translations option
+		gd.addCheckbox("Apply translations", true);
+		gd.addCheckbox("Output virtual stack (keep original)", false);
+		gd.addCheckbox("Write aligned stack to TIFF file", false); // for stacks that do not fit into memory
 
-		if (saveFile) {
-			SaveDialog sd = new SaveDialog("Save MultiStackReg File...", "translations", ".txt");
-			String directory = sd.getDirectory();
-			String fileName = sd.getFileName();
-			if (fileName == null) return;
-			try {
-				FileWriter fw = new FileWriter(directory + fileName);
-				fw.write("MultiStackReg Transformation File\n");
-				fw.write("File Version 1.0\n");
-				fw.write("0\n"); // no two stack align (MultiStackReg), otherwise: 1
-				
-				int x0 = ip.getWidth() / 2;
-				int y0 = ip.getHeight() / 2;
-
-				int[] x = new int[stackSize];
-				int[] y = new int[stackSize];
-
-				if (refSlice > 1)
-				for (int i = refSlice-1; i >= 1; i--) {
-					x[i-1] = x0 - correctionX[i-1] + correctionX[i];
-					y[i-1] = y0 - correctionY[i-1] + correctionY[i];
-				}
-
-				if (refSlice < lastSlice)
-				for (int i = refSlice+1; i <= stackSize; i++) {
-					x[i-1] = x0 - correctionX[i-1] + correctionX[i-2];
-					y[i-1] = y0 - correctionY[i-1] + correctionY[i-2];	
-				}
-				
-				if (refSlice > 1)
-				for (int i = refSlice-1; i >= 1; i--) {
-					fw.write("TRANSLATION\n");
-					fw.write("Source img: " + i + " Target img: " + refSlice + "\n");
-					fw.write(x[i-1] + "\t" + y[i-1] + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");
-					fw.write(x0 + "\t" + y0 + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");		
-				}
-
-				if (refSlice < lastSlice)
-				for (int i = refSlice+1; i <= stackSize; i++) {
-					fw.write("TRANSLATION\n");
-					fw.write("Source img: " + i + " Target img: " + refSlice + "\n");
-					fw.write(x[i-1] + "\t" + y[i-1] + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");
-					fw.write(x0 + "\t" + y0 + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");	
-				}
-	
-				fw.close();
+		// statistics of every slice: where the time goes, ambiguous matches
+		gd.addChoice("Statistics", AlignmentStatistics.MODES, "none");
+		gd.addCheckbox("Save statistics as CSV", false);
+		
+		// show dialog
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
 
-			} catch (IOException e) {IJ.showMessage("Saving MultiStackReg File failed.");}
-			
+		// get values from dialog
 
+		if (view != null) {
+			view.channel = (int) gd.getNextNumber();
+			if (view.alongFrames && imp.getNSlices() > 1) view.projection = gd.getNextChoice();
 		}
+		engine.range = (int) gd.getNextNumber();
+		engine.startRange = (int) gd.getNextNumber();
+		engine.power = gd.getNextNumber(); // error loading
+		engine.metric = gd.getNextChoice(); // error metric
+		engine.searchMethod = gd.getNextChoice(); // search method
+		engine.threads = (int) gd.getNextNumber();
+		engine.earlyExit = gd.getNextBoolean();
+		engine.vectorKernel = gd.getNextBoolean();
+		String mode = gd.getNextChoice(); // plugin mode
+		engine.chunked = gd.getNextBoolean();
+		engine.setMode(mode, (int) gd.getNextNumber());
+		engine.predictor = new MotionPredictor(gd.getNextChoice()); // motion prediction
+		if (gd.getNextBoolean()) engine.cache = CorrectionCache.getDefault();
 
-		//
-		// apply corrections
-		//
+		// range of slices
+		engine.firstSlice = (int) gd.getNextNumber();
+		engine.lastSlice = (int) gd.getNextNumber();
 
-		if (doTranslate) {		
-			imp.unlock();
-			imp.killRoi();	
-			IJ.showStatus("Translating Images...");		
-		
-			for (int i = 1; i <= stackSize; i++) {
-				imp.setSlice(i);
-				IJ.run("Translate...", "x=" + correctionX[i - 1] + " y=" + correctionY[i - 1] +
-				  " interpolation=None slice");
-			}
-		
-			IJ.showStatus("");
-			imp.setRoi(roiRect);
+		engine.adjustTo = gd.getNextChoice(); // adjust to... option
+		engine.correctPrevious = gd.getNextBoolean(); // correct slices before range
+		engine.correctFollowing = gd.getNextBoolean(); // correct slices after range
+		saveFile = gd.getNextBoolean(); // save to MultiStackReg file checkbox
+		doTranslate = gd.getNextBoolean(); // whether translations are applied
+		virtualOutput = gd.getNextBoolean(); // whether they are applied to a new virtual stack
+		writeFile = gd.getNextBoolean(); // whether the translated slices are written to a file
+		int statisticsMode = gd.getNextChoiceIndex();
+		if (statisticsMode > 0) engine.statistics = new AlignmentStatistics(statisticsMode == 2);
+		saveStatistics = gd.getNextBoolean();
+		return true;
+	}
+
+	// same parameters as in the dialog from macro options without display; keys as recorded
+	// from the dialog (first word of the label, _0, _1 for repeated words), same defaults
+	void readOptions(String options) {
+		if (view != null) {
+			view.channel = (int) getNumber(options, "align", view.channel);
+			if (view.alongFrames && imp.getNSlices() > 1) view.projection = getChoice(options, "z", HyperstackView.PLANES, HyperstackView.PLANES[0]);
 		}
+		engine.range = (int) getNumber(options, "range", 5);
+		engine.startRange = (int) getNumber(options, "adaptive", 0);
+		engine.power = getNumber(options, "error", 2);
+		engine.metric = getChoice(options, "error_0", AlignmentEngine.METRICS, "error exponent");
+		engine.searchMethod = getChoice(options, "search", AlignmentEngine.SEARCH_METHODS, "exhaustive");
+		engine.threads = (int) getNumber(options, "threads", Prefs.getThreads());
+		engine.earlyExit = isSet(options, "early");
+		engine.vectorKernel = isSet(options, "vector");
+		String mode = getChoice(options, "compare", AlignmentEngine.MODES, "selected slice");
+		engine.chunked = isSet(options, "parallel");
+		engine.setMode(mode, (int) getNumber(options, "nearest", 3));
+		engine.predictor = new MotionPredictor(getChoice(options, "motion", MotionPredictor.METHODS, "none"));
+		if (isSet(options, "cache")) engine.cache = CorrectionCache.getDefault();
+		engine.firstSlice = (int) getNumber(options, "correct", 1);
+		engine.lastSlice = (int) getNumber(options, "to", engine.stackSize);
+		engine.adjustTo = getChoice(options, "adjust", AlignmentEngine.ADJUST_CHOICES, "first slice of range");
+		engine.correctPrevious = isSet(options, "correct_0");
+		engine.correctFollowing = isSet(options, "correct_1");
+		saveFile = isSet(options, "save");
+		doTranslate = isSet(options, "apply");
+		virtualOutput = isSet(options, "output");
+		writeFile = isSet(options, "write");
+		String statisticsMode = getChoice(options, "statistics", AlignmentStatistics.MODES, "none");
+		if (!statisticsMode.equals("none")) engine.statistics = new AlignmentStatistics(statisticsMode.equals(AlignmentStatistics.MODES[2]));
+		saveStatistics = isSet(options, "save_0");
+	}
 
-		IJ.showStatus("");
-		imp.setRoi(roiRect);
-		
-	} catch (Exception e) {
-		IJ.showMessage("Error! Check Image and Roi."); 
-		IJ.showStatus("");
+	static double getNumber(String options, String key, double defaultValue) {
+		String value = Macro.getValue(options, key, null);
+		if (value == null) return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number: " + key + "=" + value);
+		}
 	}
 
-	} // end of run method
+	static String getChoice(String options, String key, String[] choices, String defaultValue) {
+		String value = Macro.getValue(options, key, defaultValue);
+		if (!AlignmentEngine.contains(choices, value)) throw new IllegalArgumentException("Invalid choice: " + key + "=" + value);
+		return value;
+	}
 
-	public double computeError(ImageProcessor ip, int xzero, int yzero) { // computes error for given translations xzero, yzero
-		double errorsum = 0;
-		for (int x = xzero; x < xzero + roiWidth; x++) {
-			for (int y = yzero; y < yzero + roiHeight; y++) {
-				double error = Math.pow(Math.abs(ip.getPixelValue(x, y) - refImage[x-xzero][y-yzero]), power);
-				errorsum += error;
-			}
-		}
-		return errorsum;
+	static boolean isSet(String options, String key) { // checkbox: key without value
+		return (" " + options + " ").indexOf(" " + key + " ") >= 0;
 	}
-	
-	public void computeBestCorr(ImageProcessor ip, int slice, int roiX, int roiY) { // computes best correction for a slice
-		double minerror = 0;
-		bestXcorr = 0;
-		bestYcorr = 0;
-		imp.setSlice(slice);
-		for (int xtrans =  - range; xtrans <=  range; xtrans++) { // check all possible translations
-			for (int ytrans = - range; ytrans <= range; ytrans++) {
-				double error = computeError(ip, roiX + xtrans, roiY + ytrans);
-				if ((xtrans == - range) && (ytrans == - range)) { // true for 1st iteration
-					minerror = error;
-					bestXcorr = -xtrans;
-					bestYcorr = -ytrans;
-				}
-				if  (error < minerror) { // found new min. error
-					minerror = error;
-					bestXcorr = -xtrans;
-					bestYcorr = -ytrans;
-				}
-			}
+
+	// path of an output file from the macro options (key=[path]) or from a save dialog,
+	// recorded as macro option; null if canceled
+	static String getSavePath(String key, String title, String name, String extension) {
+		String options = Macro.getOptions();
+		String path = options != null ? Macro.getValue(options, key, null) : null;
+		if (path != null) return path;
+		if (GraphicsEnvironment.isHeadless()) {
+			IJ.log("Alignment: no file path given (" + key + "=[...]), " + title + " skipped");
+			return null;
 		}
+		SaveDialog sd = new SaveDialog(title, name, extension);
+		if (sd.getFileName() == null) return null;
+		path = sd.getDirectory() + sd.getFileName();
+		if (Recorder.record) Recorder.recordOption(key, path);
+		return path;
+	}
+
+	long stackPixels() { // number of pixels of all slices
+		return (long) stack.getWidth() * stack.getHeight() * stackSize;
+	}
+
+	void showStatistics() { // shows the statistics table and saves it as CSV file
+		ResultsTable rt = engine.statistics.getTable();
+		rt.show("Alignment Statistics");
+		if (!saveStatistics) return;
+		String path = getSavePath("csv", "Save Statistics...", imp.getShortTitle() + "-statistics", ".csv");
+		if (path != null) rt.save(path);
 	}
 
 }
@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import ij.plugin.filter.*;
+import java.awt.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+// Applies the translations of a MultiStackReg file written by Alignment_Roi or
+// Prealign_Stack to the current stack, without a search. The translations can be
+// scaled, e.g. by 2 if they were computed on a copy with 2 x 2 binning. A file with
+// one transformation per time point of a hyperstack (e.g. computed on a single
+// channel) is applied to all channels and planes of every time point. Output as in
+// Alignment_Roi: in place, as a new virtual stack or as a TIFF file (tiff=[...]).
+public class Apply_Transformations implements PlugInFilter {
+
+	ImagePlus imp;
+
+	String path = ""; // MultiStackReg file
+	double scale = 1; // factor for the translations of the file
+	boolean doTranslate = true; // -> apply corrections
+	boolean virtualOutput; // -> show the corrections as a new virtual stack instead of changing the image
+	boolean writeFile; // -> write the translated slices to a new TIFF file, one at a time
+
+	Corrections corrections; // as read from the file (slices or time points)
+
+	public int setup(String arg, ImagePlus imp) {
+		this.imp = imp;
+		return DOES_ALL;
+	}
+
+	public void run(ImageProcessor ip) {
+		String options = Macro.getOptions();
+		if (options != null && GraphicsEnvironment.isHeadless()) readOptions(options);
+		else if (!showDialog()) return;
+		if (!(doTranslate || writeFile)) {
+			IJ.error("Apply Transformations", "Please choose at least 'Apply translations' or 'Write aligned stack'.");
+			return;
+		}
+		if (!(scale > 0)) {
+			IJ.error("Apply Transformations", "Invalid scale: " + scale);
+			return;
+		}
+
+		ImageStack stack = imp.getStack();
+		try {
+			corrections = MultiStackRegFile.read(path, scale);
+		} catch (IOException e) {
+			IJ.error("Apply Transformations", e.getMessage());
+			return;
+		}
+		int[] correctionX = corrections.getX();
+		int[] correctionY = corrections.getY();
+		boolean hyperstack = false; // one transformation per time point
+		if (correctionX.length != stack.getSize()) {
+			if (!HyperstackView.isHyperstack(imp) || correctionX.length != HyperstackView.getPositions(imp)) {
+				IJ.error("Apply Transformations", "The file has transformations for " + correctionX.length + " images, the stack has "
+					+ stack.getSize() + " slices" + (HyperstackView.isHyperstack(imp) ? " and " + HyperstackView.getPositions(imp) + " time points." : "."));
+				return;
+			}
+			hyperstack = true;
+			correctionX = HyperstackView.expand(imp, correctionX);
+			correctionY = HyperstackView.expand(imp, correctionY);
+		}
+
+		if (writeFile) { // each slice is read, translated and written to a mapped buffer before the next one is read
+			String file = Alignment_Roi.getSavePath("tiff", "Save Aligned Stack...", imp.getShortTitle() + "-aligned", ".tif");
+			if (file != null) {
+				IJ.showStatus("Writing aligned stack...");
+				try {
+					MappedStackWriter writer = new MappedStackWriter(stack, imp.getCalibration());
+					if (hyperstack) writer.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+					writer.writeTranslated(stack, correctionX, correctionY, file);
+				} catch (IOException e) {IJ.showMessage("Saving aligned stack failed.");}
+			}
+		}
+
+		// slices of a virtual stack are read from disk again when they are displayed,
+		// so they can not be translated in place
+		if (stack.isVirtual()) virtualOutput = true;
+
+		if (doTranslate && virtualOutput) { // slices are translated when they are displayed
+			ImagePlus aligned = new ImagePlus(imp.getShortTitle() + "-aligned", new AlignedVirtualStack(stack, correctionX, correctionY));
+			aligned.setCalibration(imp.getCalibration());
+			if (hyperstack || imp.isHyperStack()) {
+				aligned.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+				aligned.setOpenAsHyperStack(true);
+			}
+			aligned.show();
+		}
+
+		if (doTranslate && !virtualOutput) {
+			IJ.showStatus("Translating Images...");
+			ForkJoinPool pool = null; // translate slices in parallel
+			if (Prefs.getThreads() > 1) pool = new ForkJoinPool(Prefs.getThreads());
+			new StackTranslator(pool).translate(stack, correctionX, correctionY);
+			if (pool != null) pool.shutdown();
+			imp.changes = true;
+			imp.updateAndDraw();
+		}
+		IJ.showStatus("");
+	}
+
+	// returns false if canceled
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Apply Transformations");
+		gd.addFileField("Transformation file (MultiStackReg)", path);
+		gd.addNumericField("Scale translations by", scale, 2); // e.g. binning of the stack the file was computed for
+		gd.addCheckbox("Apply translations", doTranslate);
+		gd.addCheckbox("Output virtual stack (keep original)", virtualOutput);
+		gd.addCheckbox("Write aligned stack to TIFF file", writeFile);
+		if (HyperstackView.isHyperstack(imp))
+			gd.addMessage("Hyperstack: a file with " + HyperstackView.getPositions(imp) + " transformations is applied to all channels and planes.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		path = gd.getNextString();
+		scale = gd.getNextNumber();
+		doTranslate = gd.getNextBoolean();
+		virtualOutput = gd.getNextBoolean();
+		writeFile = gd.getNextBoolean();
+		return true;
+	}
+
+	// same parameters from macro options without display (keys as recorded from the dialog)
+	void readOptions(String options) {
+		path = Macro.getValue(options, "transformation", path);
+		scale = Alignment_Roi.getNumber(options, "scale", scale);
+		doTranslate = Alignment_Roi.isSet(options, "apply");
+		virtualOutput = Alignment_Roi.isSet(options, "output");
+		writeFile = Alignment_Roi.isSet(options, "write");
+	}
+
+}
@@ -0,0 +1,431 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.measure.*;
+import ij.plugin.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Aligns all stacks of a directory (or of a text file with one path per line)
+// with the same parameters and the same Roi, several stacks at a time, and
+// writes a MultiStackReg file and/or the aligned stack of each one to the
+// output directory. The number of stacks processed at the same time is limited
+// by a memory budget: every stack reserves its estimated memory (in MB) from a
+// fair semaphore before it is opened, so small stacks run in parallel and a
+// large one waits until enough memory is free (a stack larger than the budget
+// runs alone). Every stack has its own thread of a fixed pool, so a stack that
+// waits for memory blocks only this thread. Uncompressed TIFF files are opened
+// as MappedStack (only a few slices in memory), other files are read completely.
+// The table "Batch Alignment" lists the time for waiting, opening, searching
+// and writing of every stack. Runs as a plugin (dialog, macro options, without
+// display macro options only) or from the command line with macro options:
+//   java -Djava.awt.headless=true -cp ij.jar:. Batch_Alignment input=/data range=10 write
+public class Batch_Alignment implements PlugIn {
+
+	static final long MB = 1 << 20;
+
+	String input = ""; // directory, stack or text file with one path per line
+	String filter = ".tif"; // file names in a directory have to end with this (empty: all files)
+	String outputDirectory = ""; // empty: directory of every stack
+	boolean centerRoi = true; // Roi in the center of every stack (x, y ignored)
+	Rectangle roi = new Rectangle(0, 0, 64, 64);
+	int range = 5;
+	int startRange;
+	double power = 2;
+	String metric = "error exponent";
+	String searchMethod = "exhaustive";
+	int threads = 1; // threads per stack
+	boolean earlyExit = true;
+	boolean vectorKernel;
+	String mode = "selected slice";
+	boolean chunked;
+	int neighbors = 3;
+	String prediction = "none";
+	int referenceSlice = 1; // slice with the Roi at its position (selected slice of Alignment_Roi)
+	String adjustTo = "first slice of range";
+	boolean useCache; // search results of earlier runs from CorrectionCache
+	long memoryBudget = Math.max(MB, (IJ.maxMemory() - IJ.currentMemory()) * 3 / 4); // bytes
+	int maxStacks = Prefs.getThreads(); // stacks processed at the same time (at most)
+	boolean saveFile = true; // MultiStackReg file of every stack
+	boolean writeFile; // aligned stack of every stack
+	boolean saveSummary; // summary table as CSV file in the output directory
+
+	Semaphore memory; // free memory budget in MB
+	CorrectionCache cache; // shared by all stacks (or null)
+	AtomicInteger finished;
+	int stacks; // number of stacks of the batch
+
+	public static void main(String[] args) {
+		StringBuilder options = new StringBuilder();
+		for (String arg : args) options.append(arg).append(' ');
+		Batch_Alignment batch = new Batch_Alignment();
+		batch.readOptions(options.toString());
+		ResultsTable rt = batch.runBatch();
+		System.out.println(rt.getColumnHeadings());
+		for (int i = 0; i < rt.getCounter(); i++) {
+			System.out.println(rt.getRowAsString(i));
+		}
+	}
+
+	public void run(String arg) {
+		String options = Macro.getOptions();
+		if (options != null && GraphicsEnvironment.isHeadless()) readOptions(options);
+		else if (!showDialog()) return;
+		ResultsTable rt = runBatch();
+		rt.show("Batch Alignment");
+		IJ.showStatus("");
+	}
+
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Batch Alignment");
+		gd.addStringField("Input (directory or file list)", input, 40);
+		gd.addStringField("Filter (file name ends with)", filter, 10);
+		gd.addStringField("Output directory (empty: same as input)", outputDirectory, 40);
+		gd.addCheckbox("Center Roi", centerRoi);
+		gd.addNumericField("X (Roi)", roi.x, 0);
+		gd.addNumericField("Y (Roi)", roi.y, 0);
+		gd.addNumericField("Width (Roi)", roi.width, 0);
+		gd.addNumericField("Height (Roi)", roi.height, 0);
+		gd.addNumericField("Range (px): +-", range, 0);
+		gd.addNumericField("Adaptive start range (px, 0 = off)", startRange, 0);
+		gd.addNumericField("Error exponent", power, 2);
+		gd.addChoice("Error metric", AlignmentEngine.METRICS, metric);
+		gd.addChoice("Search method", AlignmentEngine.SEARCH_METHODS, searchMethod);
+		gd.addNumericField("Threads per stack", threads, 0);
+		gd.addCheckbox("Early termination", earlyExit);
+		gd.addCheckbox("Vector API kernel (SIMD)", vectorKernel);
+		gd.addChoice("Compare with...", AlignmentEngine.MODES, mode);
+		gd.addCheckbox("Parallel chunks (previous slice mode)", chunked);
+		gd.addNumericField("Nearest slices k (global fit)", neighbors, 0);
+		gd.addChoice("Motion prediction", MotionPredictor.METHODS, prediction);
+		gd.addNumericField("Reference slice (Roi position)", referenceSlice, 0);
+		gd.addChoice("Adjust to...", AlignmentEngine.ADJUST_CHOICES, adjustTo);
+		gd.addCheckbox("Cache corrections on disk", useCache);
+		gd.addNumericField("Memory budget (MB)", memoryBudget / MB, 0);
+		gd.addNumericField("Stacks in parallel (max.)", maxStacks, 0);
+		gd.addCheckbox("Save MultiStackReg files", saveFile);
+		gd.addCheckbox("Write aligned stacks", writeFile);
+		gd.addCheckbox("Save summary as CSV", saveSummary);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		input = gd.getNextString();
+		filter = gd.getNextString();
+		outputDirectory = gd.getNextString();
+		centerRoi = gd.getNextBoolean();
+		roi = new Rectangle((int) gd.getNextNumber(), (int) gd.getNextNumber(), (int) gd.getNextNumber(), (int) gd.getNextNumber());
+		range = (int) gd.getNextNumber();
+		startRange = (int) gd.getNextNumber();
+		power = gd.getNextNumber();
+		metric = gd.getNextChoice();
+		searchMethod = gd.getNextChoice();
+		threads = (int) gd.getNextNumber();
+		earlyExit = gd.getNextBoolean();
+		vectorKernel = gd.getNextBoolean();
+		mode = gd.getNextChoice();
+		chunked = gd.getNextBoolean();
+		neighbors = (int) gd.getNextNumber();
+		prediction = gd.getNextChoice();
+		referenceSlice = (int) gd.getNextNumber();
+		adjustTo = gd.getNextChoice();
+		useCache = gd.getNextBoolean();
+		memoryBudget = (long) gd.getNextNumber() * MB;
+		maxStacks = (int) gd.getNextNumber();
+		saveFile = gd.getNextBoolean();
+		writeFile = gd.getNextBoolean();
+		saveSummary = gd.getNextBoolean();
+		return true;
+	}
+
+	// same parameters from macro options (keys as recorded from the dialog)
+	void readOptions(String options) {
+		input = Macro.getValue(options, "input", input);
+		filter = Macro.getValue(options, "filter", filter);
+		outputDirectory = Macro.getValue(options, "output", outputDirectory);
+		centerRoi = Alignment_Roi.isSet(options, "center");
+		roi = new Rectangle((int) Alignment_Roi.getNumber(options, "x", roi.x), (int) Alignment_Roi.getNumber(options, "y", roi.y),
+			(int) Alignment_Roi.getNumber(options, "width", roi.width), (int) Alignment_Roi.getNumber(options, "height", roi.height));
+		range = (int) Alignment_Roi.getNumber(options, "range", range);
+		startRange = (int) Alignment_Roi.getNumber(options, "adaptive", startRange);
+		power = Alignment_Roi.getNumber(options, "error", power);
+		metric = Alignment_Roi.getChoice(options, "error_0", AlignmentEngine.METRICS, metric);
+		searchMethod = Alignment_Roi.getChoice(options, "search", AlignmentEngine.SEARCH_METHODS, searchMethod);
+		threads = (int) Alignment_Roi.getNumber(options, "threads", threads);
+		earlyExit = Alignment_Roi.isSet(options, "early");
+		vectorKernel = Alignment_Roi.isSet(options, "vector");
+		mode = Alignment_Roi.getChoice(options, "compare", AlignmentEngine.MODES, mode);
+		chunked = Alignment_Roi.isSet(options, "parallel");
+		neighbors = (int) Alignment_Roi.getNumber(options, "nearest", neighbors);
+		prediction = Alignment_Roi.getChoice(options, "motion", MotionPredictor.METHODS, prediction);
+		referenceSlice = (int) Alignment_Roi.getNumber(options, "reference", referenceSlice);
+		adjustTo = Alignment_Roi.getChoice(options, "adjust", AlignmentEngine.ADJUST_CHOICES, adjustTo);
+		useCache = Alignment_Roi.isSet(options, "cache");
+		memoryBudget = (long) Alignment_Roi.getNumber(options, "memory", memoryBudget / MB) * MB;
+		maxStacks = (int) Alignment_Roi.getNumber(options, "stacks", maxStacks);
+		saveFile = Alignment_Roi.isSet(options, "save");
+		writeFile = Alignment_Roi.isSet(options, "write");
+		saveSummary = Alignment_Roi.isSet(options, "save_0");
+	}
+
+	// aligns all stacks, returns the summary table
+	ResultsTable runBatch() {
+		ResultsTable rt = new ResultsTable();
+		rt.setNaNEmptyCells(true);
+		java.util.List<String> paths;
+		try {
+			paths = listInput();
+		} catch (IOException e) {
+			IJ.error("Batch Alignment", e.getMessage());
+			return rt;
+		}
+		if (paths.isEmpty()) {
+			IJ.error("Batch Alignment", "No stacks found: " + input);
+			return rt;
+		}
+		Job[] jobs = new Job[paths.size()];
+		for (int i = 0; i < jobs.length; i++) jobs[i] = new Job(paths.get(i));
+
+		memoryBudget = Math.max(MB, memoryBudget);
+		memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudget / MB), true); // first come, first served
+		finished = new AtomicInteger();
+		stacks = jobs.length;
+		cache = useCache ? CorrectionCache.getDefault() : null;
+		long start = System.nanoTime();
+		// one thread per stack: a job waiting for the memory budget blocks its own thread only
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(maxStacks, jobs.length)));
+		for (Job job : jobs) executor.execute(job);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) { // waiting jobs end with status "interrupted"
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		double wallTime = (System.nanoTime() - start) / 1e9;
+		IJ.showProgress(1.0);
+
+		int failed = 0;
+		for (Job job : jobs) {
+			job.addRow(rt);
+			if (!job.status.equals("ok")) failed++;
+		}
+		rt.incrementCounter();
+		rt.addLabel("batch (" + jobs.length + " stacks, " + failed + " failed)");
+		rt.addValue("Total (s)", wallTime);
+		rt.addValue("Stacks/h", jobs.length * 3600 / wallTime);
+
+		if (saveSummary) {
+			String directory = outputDirectory.length() > 0 ? outputDirectory : new File(jobs[0].path).getParent();
+			rt.save(new File(directory, "batch-alignment.csv").getPath());
+		}
+		return rt;
+	}
+
+	// stacks of the input: all files of a directory (sorted, name ends with filter), the paths
+	// in a text file (one per line, relative to its directory, # for comments) or a single stack
+	java.util.List<String> listInput() throws IOException {
+		java.util.List<String> paths = new ArrayList<String>();
+		File file = new File(input);
+		if (file.isDirectory()) {
+			String[] names = file.list();
+			if (names == null) throw new IOException("Directory can not be read: " + input);
+			Arrays.sort(names);
+			for (String name : names) {
+				File f = new File(file, name);
+				if (f.isFile() && !name.startsWith(".") && name.toLowerCase().endsWith(filter.toLowerCase())) paths.add(f.getPath());
+			}
+		} else if (input.toLowerCase().endsWith(".txt")) {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				File f = new File(line);
+				if (!f.isAbsolute()) f = new File(file.getAbsoluteFile().getParentFile(), line);
+				paths.add(f.getPath());
+			}
+			reader.close();
+		} else if (file.isFile()) paths.add(input);
+		else throw new IOException("Input not found: " + input);
+		return paths;
+	}
+
+	// one stack: memory estimate, open, align, write; times in s
+	class Job implements Runnable {
+
+		String path;
+		String status = "waiting";
+		boolean mapped; // opened as MappedStack
+		int slices;
+		int width;
+		int height;
+		long memoryNeeded; // estimated bytes
+		double waitTime;
+		double openTime;
+		double searchTime;
+		double writeTime;
+		double fitResidual = Double.NaN;
+
+		Job(String path) {
+			this.path = path;
+		}
+
+		public void run() {
+			process();
+			IJ.showProgress(finished.incrementAndGet(), stacks);
+		}
+
+		void process() {
+			long start = System.nanoTime();
+			MappedStack mappedStack = null;
+			ImagePlus imp = null;
+			int permits = 0; // reserved MB of the memory budget
+			try {
+				File file = new File(path);
+				try {
+					mappedStack = MappedStack.openTiff(file.getParent() + File.separator, file.getName()); // no pixels read yet
+				} catch (IOException e) {} // compressed or no TIFF: read completely
+				memoryNeeded = estimateMemory(file, mappedStack);
+				int needed = (int) Math.min(memoryBudget / MB, Math.max(1, (memoryNeeded + MB - 1) / MB)); // stacks larger than the budget run alone
+				memory.acquire(needed);
+				permits = needed;
+				long acquired = System.nanoTime();
+				waitTime = (acquired - start) / 1e9;
+
+				IJ.showStatus("Batch alignment: " + file.getName());
+				ImageStack stack;
+				Calibration cal;
+				if (mappedStack != null) {
+					mapped = true;
+					stack = mappedStack;
+					cal = new Calibration();
+					FileInfo fi = mappedStack.getFileInfo();
+					if (fi.unit != null && fi.pixelWidth > 0 && fi.pixelHeight > 0) { // spatial calibration of the TIFF file
+						cal.setUnit(fi.unit);
+						cal.pixelWidth = fi.pixelWidth;
+						cal.pixelHeight = fi.pixelHeight;
+					}
+				} else {
+					imp = IJ.openImage(path);
+					if (imp == null) throw new IOException("Can not be opened");
+					stack = imp.getStack();
+					cal = imp.getCalibration();
+				}
+				slices = stack.getSize();
+				width = stack.getWidth();
+				height = stack.getHeight();
+				long opened = System.nanoTime();
+				openTime = (opened - acquired) / 1e9;
+
+				Rectangle r = centerRoi ? new Rectangle((width - roi.width) / 2, (height - roi.height) / 2, roi.width, roi.height) : roi;
+				if (!new Rectangle(0, 0, width, height).contains(r)) throw new IllegalArgumentException("Roi outside of the image");
+				AlignmentEngine engine = createEngine(stack, r);
+				if (imp != null) engine.setPixelValues(imp.getProcessor());
+				Corrections corrections = engine.align();
+				fitResidual = engine.neighbors > 0 ? corrections.fitResidual : Double.NaN;
+				long searched = System.nanoTime();
+				searchTime = (searched - opened) / 1e9;
+
+				String name = file.getName();
+				int dot = name.lastIndexOf('.');
+				if (dot > 0) name = name.substring(0, dot);
+				File directory = outputDirectory.length() > 0 ? new File(outputDirectory) : file.getAbsoluteFile().getParentFile();
+				if (saveFile) corrections.saveMultiStackReg(new File(directory, name + "-translations.txt").getPath(), width, height);
+				if (writeFile) MappedStackWriter.write(stack, corrections.getX(), corrections.getY(), cal, new File(directory, name + "-aligned.tif").getPath());
+				writeTime = (System.nanoTime() - searched) / 1e9;
+				status = "ok";
+			} catch (InterruptedException e) {
+				status = "interrupted";
+			} catch (Exception e) {
+				status = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+			} finally {
+				if (mappedStack != null) mappedStack.close();
+				if (imp != null) imp.flush();
+				if (permits > 0) memory.release(permits);
+			}
+		}
+
+		void addRow(ResultsTable rt) {
+			rt.incrementCounter();
+			rt.addLabel(new File(path).getName());
+			rt.addValue("Slices", slices);
+			rt.addValue("Width", width);
+			rt.addValue("Height", height);
+			rt.addValue("Mapped", mapped ? 1 : 0);
+			rt.addValue("Memory (MB)", memoryNeeded / (double) MB);
+			rt.addValue("Wait (s)", waitTime);
+			rt.addValue("Open (s)", openTime);
+			rt.addValue("Search (s)", searchTime);
+			rt.addValue("Write (s)", writeTime);
+			rt.addValue("Total (s)", waitTime + openTime + searchTime + writeTime);
+			rt.addValue("Residual (px)", fitResidual);
+			rt.addValue("Status", status);
+		}
+
+	}
+
+	// estimated memory for aligning a stack (bytes): a few slices for a MappedStack (search region,
+	// slices of the writer, int copy of the vector kernel), otherwise all slices plus two for the writer;
+	// every further AlignmentEngine (see engines) has its own search region and copy for the kernel
+	long estimateMemory(File file, MappedStack mappedStack) throws IOException {
+		if (mappedStack != null) {
+			long slice = 4L * mappedStack.getWidth() * mappedStack.getHeight();
+			return (4 + 2 * (engines(mappedStack.getSize()) - 1)) * slice;
+		}
+		FileInfo[] info = null;
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".tif") || name.endsWith(".tiff")) info = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if (info == null || info.length == 0) return 2 * file.length(); // unknown format: size of the file plus the writer
+		FileInfo fi = info[0];
+		long sliceBytes = (long) fi.width * fi.height * (fi.fileType == FileInfo.RGB ? 4 : fi.getBytesPerPixel());
+		long slices = info.length > 1 ? info.length : Math.max(1, fi.nImages);
+		return (slices + 2) * sliceBytes + 2 * (engines((int) slices) - 1) * 4L * fi.width * fi.height;
+	}
+
+	// AlignmentEngines working on a stack at the same time: the engine and its workers (one per thread
+	// for parallel chunks and k nearest slices, see AlignmentEngine.computeCorrectionsChunked)
+	int engines(int slices) {
+		if (threads < 2 || slices < 2) return 1;
+		boolean workers = mode.equals(AlignmentEngine.MODES[2]) || (mode.equals(AlignmentEngine.MODES[1]) && chunked && slices > 2);
+		return workers ? 1 + Math.min(threads, slices - 1) : 1;
+	}
+
+	// AlignmentEngine with the parameters of the dialog for all slices of a stack
+	AlignmentEngine createEngine(ImageStack stack, Rectangle r) {
+		AlignmentEngine engine = new AlignmentEngine(stack, r);
+		engine.range = range;
+		engine.startRange = startRange;
+		engine.power = power;
+		engine.metric = metric;
+		engine.searchMethod = searchMethod;
+		engine.threads = threads;
+		engine.earlyExit = earlyExit;
+		engine.vectorKernel = vectorKernel;
+		engine.setMode(mode, neighbors);
+		engine.chunked = chunked;
+		engine.predictor = new MotionPredictor(prediction);
+		engine.selectedSlice = Math.max(1, Math.min(stack.getSize(), referenceSlice));
+		engine.adjustTo = adjustTo;
+		engine.cache = cache;
+		return engine;
+	}
+
+}
@@ -0,0 +1,288 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Search results of AlignmentEngine on disk (one small text file per run), so
+// that running the alignment again on the same stack with the same Roi and
+// search parameters only repeats the cheap steps ("Adjust to...", correct
+// previous / following slices, output). The key of an entry is a 64 bit hash of
+// the pixels of all slices (as searched: for hyperstacks the channel or
+// projection of HyperstackView) together with all parameters that change the
+// translations. Early termination is not part of it, it gives the same result;
+// the number of threads only in previous slice mode with parallel chunks (the
+// motion prediction starts again in every chunk), the Vector API kernel only
+// for 32-bit images (other order of summation, ties can be broken differently;
+// 8 and 16 bit: same errors). The entries are the
+// corrections before "Adjust to...", the checked ranges, the start slice and the
+// fit residual. When the files exceed maxBytes, the least recently used ones
+// are deleted (last modified time, updated on every hit).
+public class CorrectionCache {
+
+	static final String VERSION = "3"; // changes if the search gives other results for the same key
+	static final long MB = 1 << 20;
+
+	File directory;
+	long maxBytes; // total size of the files, older ones are deleted above this
+
+	public CorrectionCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	// cache in the temporary directory of Java; size in MB from the preference
+	// alignment.cache.size (default 64), e.g. call("ij.Prefs.set", "alignment.cache.size", "500")
+	public static CorrectionCache getDefault() {
+		String temp = System.getProperty("java.io.tmpdir");
+		long size = (long) Prefs.get("alignment.cache.size", 64);
+		return new CorrectionCache(new File(temp, "alignment-cache"), Math.max(1, size) * MB);
+	}
+
+	// key of the search of an engine: parameters and hash of the pixels (reads all slices)
+	public String key(AlignmentEngine engine) {
+		StringBuilder sb = new StringBuilder("version=" + VERSION);
+		ImageStack stack = engine.stack;
+		sb.append(" size=" + stack.getWidth() + "x" + stack.getHeight() + "x" + engine.stackSize + " bits=" + stack.getBitDepth());
+		sb.append(" pixels=" + Long.toHexString(hash(stack, engine.threads)));
+		if (engine.cTable != null) sb.append(" calibration=" + Arrays.hashCode(engine.cTable));
+		if (engine.rgbWeights != null) sb.append(" weights=" + Arrays.toString(engine.rgbWeights));
+		sb.append(" roi=" + engine.roiRect.x + "," + engine.roiRect.y + "," + engine.roiRect.width + "," + engine.roiRect.height);
+		sb.append(" range=" + engine.range + " start=" + engine.startRange + " exponent=" + engine.power);
+		sb.append(" metric=" + engine.metric + " search=" + engine.searchMethod);
+		boolean chunked = engine.prevSlice && engine.chunked && engine.threads > 1 && engine.lastSlice - engine.firstSlice > 1;
+		sb.append(" previous=" + engine.prevSlice + " chunks=" + (chunked ? Math.min(engine.threads, engine.lastSlice - engine.firstSlice) : 0));
+		if (engine.vectorKernel && stack.getBitDepth() == 32) sb.append(" vector=true");
+		sb.append(" nearest=" + engine.neighbors + " prediction=" + engine.predictor.method);
+		sb.append(" slices=" + engine.firstSlice + "-" + engine.lastSlice + " selected=" + engine.selectedSlice);
+		return sb.toString();
+	}
+
+	// sets the search results of the engine (correctionX, correctionY, sliceRange,
+	// refSlice, fitResidual) from the cache; false if there is no entry for the key
+	public synchronized boolean get(String key, AlignmentEngine engine) {
+		File file = getFile(key);
+		if (!file.isFile()) return false;
+		Properties entry = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				entry.load(in);
+			} finally {
+				in.close();
+			}
+			if (!key.equals(entry.getProperty("key"))) return false; // other key with the same file name
+			int[] x = parse(entry.getProperty("x"));
+			int[] y = parse(entry.getProperty("y"));
+			int[] range = parse(entry.getProperty("range"));
+			if (x.length != engine.stackSize || y.length != x.length || range.length != x.length) return false;
+			engine.refSlice = Integer.parseInt(entry.getProperty("refSlice"));
+			engine.fitResidual = Double.parseDouble(entry.getProperty("fitResidual"));
+			engine.correctionX = x;
+			engine.correctionY = y;
+			engine.sliceRange = range;
+		} catch (Exception e) { // damaged entry: search again
+			IJ.log("Alignment: cache entry " + file.getName() + " can not be read (" + e.getMessage() + ")");
+			return false;
+		}
+		file.setLastModified(System.currentTimeMillis()); // recently used
+		return true;
+	}
+
+	// saves the search results of the engine, then deletes the least recently used entries
+	public synchronized void put(String key, AlignmentEngine engine) {
+		Properties entry = new Properties();
+		entry.setProperty("key", key);
+		entry.setProperty("refSlice", "" + engine.refSlice);
+		entry.setProperty("fitResidual", "" + engine.fitResidual);
+		entry.setProperty("x", format(engine.correctionX));
+		entry.setProperty("y", format(engine.correctionY));
+		entry.setProperty("range", format(engine.sliceRange));
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Directory can not be created: " + directory);
+			File file = getFile(key);
+			File temp = new File(directory, file.getName() + ".tmp"); // renamed when complete, other processes never read a partial entry
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				entry.store(out, "AlignmentEngine corrections before \"Adjust to...\"");
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!temp.renameTo(file)) throw new IOException("Can not rename " + temp);
+		} catch (IOException e) {
+			IJ.log("Alignment: corrections can not be cached (" + e.getMessage() + ")");
+			return;
+		}
+		evict();
+	}
+
+	// deletes the least recently used entries until the files fit into maxBytes
+	void evict() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".txt");
+			}
+		});
+		if (files == null) return;
+		long total = 0;
+		final long[] modified = new long[files.length]; // read once, may change while sorting
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(modified[a], modified[b]);
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File file = files[order[i]];
+			long length = file.length();
+			if (file.delete()) total -= length;
+		}
+	}
+
+	// file of an entry: SHA-256 of the key
+	File getFile(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (int i = 0; i < 16; i++) name.append(String.format("%02x", digest[i]));
+			return new File(directory, name + ".txt");
+		} catch (Exception e) { // SHA-256 and UTF-8 are always available
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String format(int[] values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	static int[] parse(String s) {
+		if (s.length() == 0) return new int[0];
+		String[] items = s.split(",");
+		int[] values = new int[items.length];
+		for (int i = 0; i < items.length; i++) values[i] = Integer.parseInt(items[i]);
+		return values;
+	}
+
+	//
+	// content hash
+	//
+
+	static final long PRIME = 0x100000001b3L; // FNV-1a, 64 bit
+	static final long OFFSET = 0xcbf29ce484222325L;
+
+	// hash of all slices, in parallel if threads > 1 (otherwise all slices in the calling thread)
+	static long hash(ImageStack stack, int threads) {
+		long[] sliceHashes = new long[stack.getSize()];
+		if (threads > 1) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			pool.invoke(new Slices(stack, sliceHashes, 1, sliceHashes.length));
+			pool.shutdown();
+		} else {
+			for (int n = 1; n <= sliceHashes.length; n++) sliceHashes[n-1] = hashSlice(stack, n);
+		}
+		long h = OFFSET;
+		for (long sliceHash : sliceHashes) h = (h ^ sliceHash) * PRIME;
+		return h;
+	}
+
+	// hash of the pixel values of slice n (the same for a MappedStack and the stack read completely);
+	// four independent FNV-1a hashes of every 4th pixel, so the multiplications do not wait for each other
+	static long hashSlice(ImageStack stack, int n) {
+		Object pixels = stack.getPixels(n);
+		long h0 = OFFSET, h1 = OFFSET + 1, h2 = OFFSET + 2, h3 = OFFSET + 3;
+		int i = 0;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (; i + 4 <= p.length; i += 4) {
+				h0 = (h0 ^ p[i]) * PRIME;
+				h1 = (h1 ^ p[i+1]) * PRIME;
+				h2 = (h2 ^ p[i+2]) * PRIME;
+				h3 = (h3 ^ p[i+3]) * PRIME;
+			}
+			for (; i < p.length; i++) h0 = (h0 ^ p[i]) * PRIME;
+		} else if (pixels instanceof short[]) {
+			short[] p = (short[]) pixels;
+			for (; i + 4 <= p.length; i += 4) {
+				h0 = (h0 ^ p[i]) * PRIME;
+				h1 = (h1 ^ p[i+1]) * PRIME;
+				h2 = (h2 ^ p[i+2]) * PRIME;
+				h3 = (h3 ^ p[i+3]) * PRIME;
+			}
+			for (; i < p.length; i++) h0 = (h0 ^ p[i]) * PRIME;
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[]) pixels;
+			for (; i + 4 <= p.length; i += 4) {
+				h0 = (h0 ^ Float.floatToRawIntBits(p[i])) * PRIME;
+				h1 = (h1 ^ Float.floatToRawIntBits(p[i+1])) * PRIME;
+				h2 = (h2 ^ Float.floatToRawIntBits(p[i+2])) * PRIME;
+				h3 = (h3 ^ Float.floatToRawIntBits(p[i+3])) * PRIME;
+			}
+			for (; i < p.length; i++) h0 = (h0 ^ Float.floatToRawIntBits(p[i])) * PRIME;
+		} else {
+			int[] p = (int[]) pixels;
+			for (; i + 4 <= p.length; i += 4) {
+				h0 = (h0 ^ p[i]) * PRIME;
+				h1 = (h1 ^ p[i+1]) * PRIME;
+				h2 = (h2 ^ p[i+2]) * PRIME;
+				h3 = (h3 ^ p[i+3]) * PRIME;
+			}
+			for (; i < p.length; i++) h0 = (h0 ^ p[i]) * PRIME;
+		}
+		return (((h0 * PRIME) ^ h1) * PRIME ^ h2) * PRIME ^ h3;
+	}
+
+	// hashes of the slices first...last, split into halves (in a pool)
+	static class Slices extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		ImageStack stack;
+		long[] hashes; // hash of slice n at index n-1
+		int first;
+		int last;
+
+		Slices(ImageStack stack, long[] hashes, int first, int last) {
+			this.stack = stack;
+			this.hashes = hashes;
+			this.first = first;
+			this.last = last;
+		}
+
+		protected void compute() {
+			if (first < last && getPool() != null) {
+				int middle = first + (last - first) / 2;
+				invokeAll(new Slices(stack, hashes, first, middle), new Slices(stack, hashes, middle + 1, last));
+				return;
+			}
+			for (int n = first; n <= last; n++) hashes[n-1] = hashSlice(stack, n);
+		}
+
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.measure.*;
+import java.io.*;
+
+// Result of AlignmentEngine.align: translation of every slice of the stack
+// (apply with StackTranslator, AlignedVirtualStack or MappedStackWriter) and
+// the range checked for every slice.
+public class Corrections {
+
+	int[] x; // correction of slice n in x direction at index n-1
+	int[] y; // same in y direction
+	int[] range; // range checked for every slice (0 for slices that have not been searched)
+	int firstSlice; // first corrected slice
+	int lastSlice; // last corrected slice
+	int refSlice; // slice where the search started
+	double fitResidual; // k nearest slices mode: rms deviation of the pairwise shifts from the corrections (px)
+
+	public Corrections(int[] x, int[] y, int[] range, int firstSlice, int lastSlice, int refSlice, double fitResidual) {
+		this.x = x;
+		this.y = y;
+		this.range = range;
+		this.firstSlice = firstSlice;
+		this.lastSlice = lastSlice;
+		this.refSlice = refSlice;
+		this.fitResidual = fitResidual;
+	}
+
+	public int[] getX() {
+		return x;
+	}
+
+	public int[] getY() {
+		return y;
+	}
+
+	// corrections and checked range of the slices firstSlice...lastSlice
+	public ResultsTable getTable() {
+		ResultsTable rt = new ResultsTable();
+		for (int slice = firstSlice; slice <= lastSlice; slice++) {
+			rt.incrementCounter();
+			rt.addValue("Slice", slice);
+			rt.addValue("X correction", x[slice-1]);
+			rt.addValue("Y correction", y[slice-1]);
+			rt.addValue("Range", range[slice-1]);
+		}
+		return rt;
+	}
+
+	// MultiStackReg transformation file for images of the given size
+	public void saveMultiStackReg(String path, int width, int height) throws IOException {
+		MultiStackRegFile.write(path, x, y, refSlice, width, height);
+	}
+
+}
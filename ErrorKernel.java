@@ -0,0 +1,450 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.process.*;
+import java.awt.*;
+import java.util.concurrent.atomic.*;
+
+// Error computation of Alignment_Roi working directly on the pixel arrays.
+// The reference Roi is stored row by row in arrays which are reused for every
+// slice. Pixel values are the same as ImageProcessor.getPixelValue
+// (calibration table for 8 and 16 bit images, weighted mean for RGB images).
+// Use create() to get the kernel for the type of the image:
+//  - 8 and 16 bit: integer differences, exponents 1 and 2 in integer arithmetic,
+//    other exponents from a table of |diff|^power
+//  - 32 bit: exponents 1 and 2 and other integer exponents by multiplication,
+//    Math.pow only for non-integer exponents
+//  - RGB and calibrated 8 and 16 bit: pixel values of each slice are converted
+//    to a float array once, then same as 32 bit
+// With vector = true, create() returns a VectorKernel (SIMD) for exponents 1
+// and 2 if the Vector API is available.
+// createCorrelation() returns a kernel for least squares or normalized
+// cross-correlation, which uses integral images of the search region: only the
+// cross term sum(I * R) is summed up for every translation.
+// computeError can stop as soon as the error sum exceeds a limit (checked after
+// every row), e.g. the min. error found so far: all errors are >= 0, so such a
+// translation can not be the best one anyway.
+// Call setSlice before computeError; computeError may be called from several
+// threads at the same time.
+// After startCounting, the kernel counts the translations whose error was
+// computed and the pixels used for it (fewer than the Roi with early termination).
+public abstract class ErrorKernel {
+
+	int roiWidth;
+	int roiHeight;
+	double power; // loading of error
+	float[] ref; // reference Roi, row-major
+
+	// current slice
+	int width;
+	int height;
+
+	// counters for the statistics of Alignment_Roi (null: not counted)
+	LongAdder candidates; // translations inside of the image
+	LongAdder pixels; // pixels of the Roi used
+
+	public static ErrorKernel createCorrelation(int roiWidth, int roiHeight, boolean normalized) {
+		return new CorrelationKernel(roiWidth, roiHeight, normalized);
+	}
+
+	public static ErrorKernel create(ImageProcessor ip, int roiWidth, int roiHeight, double power) {
+		if (ip.getCalibrationTable() == null) {
+			if (ip instanceof ByteProcessor) return new ByteKernel(roiWidth, roiHeight, power);
+			if (ip instanceof ShortProcessor) return new ShortKernel(roiWidth, roiHeight, power);
+		}
+		if (ip instanceof FloatProcessor) return new FloatKernel(roiWidth, roiHeight, power);
+		return new ConvertingKernel(roiWidth, roiHeight, power);
+	}
+
+	// same as above, but VectorKernel (SIMD) for exponents 1 and 2 if vector is true and the Vector API is
+	// available; VectorKernel is loaded by name, it may be missing (not compiled without jdk.incubator.vector)
+	public static ErrorKernel create(ImageProcessor ip, int roiWidth, int roiHeight, double power, boolean vector) {
+		if (vector && (power == 1 || power == 2) && ip.getCalibrationTable() == null && !(ip instanceof ColorProcessor)) {
+			try {
+				return (ErrorKernel) Class.forName("VectorKernel")
+					.getConstructor(ImageProcessor.class, int.class, int.class, double.class)
+					.newInstance(ip, roiWidth, roiHeight, power);
+			} catch (Exception e) { // class not found
+			} catch (LinkageError e) {} // module jdk.incubator.vector not available
+		}
+		return create(ip, roiWidth, roiHeight, power);
+	}
+
+	ErrorKernel(int roiWidth, int roiHeight, double power) {
+		this.roiWidth = roiWidth;
+		this.roiHeight = roiHeight;
+		this.power = power;
+		ref = new float[roiWidth * roiHeight];
+	}
+
+	// copies the Roi at (roiX, roiY) of ip to the reference array
+	public void setReference(ImageProcessor ip, int roiX, int roiY) {
+		for (int j = 0; j < roiHeight; j++) {
+			for (int i = 0; i < roiWidth; i++) {
+				ref[j * roiWidth + i] = ip.getPixelValue(roiX + i, roiY + j);
+			}
+		}
+	}
+
+	public float[] getReference() {
+		return ref;
+	}
+
+	// uses the pixel array of ip for the following computeError calls
+	public void setSlice(ImageProcessor ip) {
+		width = ip.getWidth();
+		height = ip.getHeight();
+	}
+
+	// same as above, the following computeError calls only use pixels inside of region
+	public void setSlice(ImageProcessor ip, Rectangle region) {
+		setSlice(ip);
+	}
+
+	// computes error for given translations xzero, yzero, NaN if the Roi is outside of the image
+	public double computeError(int xzero, int yzero) {
+		return computeError(xzero, yzero, Double.POSITIVE_INFINITY);
+	}
+
+	// same as above, but returns the partial sum as soon as it is > limit
+	public abstract double computeError(int xzero, int yzero, double limit);
+
+	// sets the counters to 0, the following computeError calls are counted
+	public void startCounting() {
+		candidates = new LongAdder();
+		pixels = new LongAdder();
+	}
+
+	public long getCandidates() {
+		return candidates == null ? 0 : candidates.sum();
+	}
+
+	public long getPixels() {
+		return pixels == null ? 0 : pixels.sum();
+	}
+
+	// error of one translation computed using the given number of rows of the Roi
+	final void count(int rows) {
+		if (candidates == null) return;
+		candidates.increment();
+		pixels.add((long) rows * roiWidth);
+	}
+
+	boolean isInside(int xzero, int yzero) {
+		return xzero >= 0 && yzero >= 0 && xzero + roiWidth <= width && yzero + roiHeight <= height;
+	}
+
+	// integer exponent >= 1 or 0 if power is not an integer
+	static int integerPower(double power) {
+		if (power >= 1 && power <= Integer.MAX_VALUE && power == Math.rint(power)) return (int) power;
+		return 0;
+	}
+
+	// 8 and 16 bit images without calibration
+	static abstract class IntegerKernel extends ErrorKernel {
+
+		int[] refInt; // reference Roi as integer values
+		int maxValue; // 255 or 65535
+		double[] table; // |diff|^power at index diff + maxValue (exponents other than 1 and 2)
+
+		IntegerKernel(int roiWidth, int roiHeight, double power, int maxValue) {
+			super(roiWidth, roiHeight, power);
+			this.maxValue = maxValue;
+			refInt = new int[roiWidth * roiHeight];
+			if (power != 1 && power != 2) {
+				table = new double[2 * maxValue + 1];
+				for (int diff = - maxValue; diff <= maxValue; diff++) {
+					table[diff + maxValue] = Math.pow(Math.abs(diff), power);
+				}
+			}
+		}
+
+		public void setReference(ImageProcessor ip, int roiX, int roiY) {
+			super.setReference(ip, roiX, roiY);
+			for (int i = 0; i < refInt.length; i++) {
+				refInt[i] = (int) ref[i];
+			}
+		}
+
+		abstract int value(int pos); // pixel value of the current slice
+
+		public double computeError(int xzero, int yzero, double limit) {
+			if (!isInside(xzero, yzero)) return Double.NaN;
+			if (power == 1) {
+				long errorsum = 0;
+				for (int y = 0; y < roiHeight; y++) {
+					int pos = (yzero + y) * width + xzero;
+					int refpos = y * roiWidth;
+					for (int x = 0; x < roiWidth; x++) {
+						int diff = value(pos + x) - refInt[refpos + x];
+						errorsum += diff < 0 ? - diff : diff;
+					}
+					if (errorsum > limit) {
+						count(y + 1);
+						return errorsum;
+					}
+				}
+				count(roiHeight);
+				return errorsum;
+			}
+			if (power == 2) {
+				long errorsum = 0;
+				for (int y = 0; y < roiHeight; y++) {
+					int pos = (yzero + y) * width + xzero;
+					int refpos = y * roiWidth;
+					for (int x = 0; x < roiWidth; x++) {
+						long diff = value(pos + x) - refInt[refpos + x];
+						errorsum += diff * diff;
+					}
+					if (errorsum > limit) {
+						count(y + 1);
+						return errorsum;
+					}
+				}
+				count(roiHeight);
+				return errorsum;
+			}
+			double errorsum = 0;
+			for (int y = 0; y < roiHeight; y++) {
+				int pos = (yzero + y) * width + xzero;
+				int refpos = y * roiWidth;
+				for (int x = 0; x < roiWidth; x++) {
+					errorsum += table[value(pos + x) - refInt[refpos + x] + maxValue];
+				}
+				if (errorsum > limit) {
+					count(y + 1);
+					return errorsum;
+				}
+			}
+			count(roiHeight);
+			return errorsum;
+		}
+
+	}
+
+	static class ByteKernel extends IntegerKernel {
+
+		byte[] pixels;
+
+		ByteKernel(int roiWidth, int roiHeight, double power) {
+			super(roiWidth, roiHeight, power, 255);
+		}
+
+		public void setSlice(ImageProcessor ip) {
+			super.setSlice(ip);
+			pixels = (byte[]) ip.getPixels();
+		}
+
+		final int value(int pos) {
+			return pixels[pos] & 0xff;
+		}
+
+	}
+
+	static class ShortKernel extends IntegerKernel {
+
+		short[] pixels;
+
+		ShortKernel(int roiWidth, int roiHeight, double power) {
+			super(roiWidth, roiHeight, power, 65535);
+		}
+
+		public void setSlice(ImageProcessor ip) {
+			super.setSlice(ip);
+			pixels = (short[]) ip.getPixels();
+		}
+
+		final int value(int pos) {
+			return pixels[pos] & 0xffff;
+		}
+
+	}
+
+	// 32 bit images
+	static class FloatKernel extends ErrorKernel {
+
+		float[] pixels;
+		int intPower; // integer exponent or 0
+
+		FloatKernel(int roiWidth, int roiHeight, double power) {
+			super(roiWidth, roiHeight, power);
+			intPower = integerPower(power);
+		}
+
+		public void setSlice(ImageProcessor ip) {
+			super.setSlice(ip);
+			pixels = (float[]) ip.getPixels();
+		}
+
+		public double computeError(int xzero, int yzero, double limit) {
+			if (!isInside(xzero, yzero)) return Double.NaN;
+			double errorsum = 0;
+			for (int y = 0; y < roiHeight; y++) {
+				int pos = (yzero + y) * width + xzero;
+				int refpos = y * roiWidth;
+				if (intPower == 1) {
+					for (int x = 0; x < roiWidth; x++) {
+						errorsum += Math.abs((double) pixels[pos + x] - ref[refpos + x]);
+					}
+				} else if (intPower == 2) {
+					for (int x = 0; x < roiWidth; x++) {
+						double diff = (double) pixels[pos + x] - ref[refpos + x];
+						errorsum += diff * diff;
+					}
+				} else if (intPower > 2) {
+					for (int x = 0; x < roiWidth; x++) {
+						double diff = Math.abs((double) pixels[pos + x] - ref[refpos + x]);
+						double error = diff;
+						for (int k = 1; k < intPower; k++) error *= diff;
+						errorsum += error;
+					}
+				} else {
+					for (int x = 0; x < roiWidth; x++) {
+						errorsum += Math.pow(Math.abs((double) pixels[pos + x] - ref[refpos + x]), power);
+					}
+				}
+				if (errorsum > limit) {
+					count(y + 1);
+					return errorsum;
+				}
+			}
+			count(roiHeight);
+			return errorsum;
+		}
+
+	}
+
+	// RGB and calibrated 8 and 16 bit images: pixel values are converted to float for every slice
+	static class ConvertingKernel extends FloatKernel {
+
+		float[] buffer; // pixel values of the current slice, reused for every slice
+
+		ConvertingKernel(int roiWidth, int roiHeight, double power) {
+			super(roiWidth, roiHeight, power);
+		}
+
+		public void setSlice(ImageProcessor ip) {
+			setSlice(ip, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+		}
+
+		public void setSlice(ImageProcessor ip, Rectangle region) {
+			width = ip.getWidth();
+			height = ip.getHeight();
+			if (buffer == null || buffer.length != width * height) buffer = new float[width * height];
+			region = region.intersection(new Rectangle(0, 0, width, height));
+			Object p = ip.getPixels();
+			float[] cTable = ip.getCalibrationTable();
+			double[] weights = null;
+			if (p instanceof int[]) { // RGB, same weights as getPixelValue
+				weights = ((ColorProcessor) ip).getRGBWeights();
+				if (weights == null) weights = ColorProcessor.getWeightingFactors();
+			}
+			for (int y = region.y; y < region.y + region.height; y++) {
+				int first = y * width + region.x;
+				int last = first + region.width;
+				if (p instanceof byte[]) {
+					byte[] bytes = (byte[]) p;
+					for (int i = first; i < last; i++) buffer[i] = cTable[bytes[i] & 0xff];
+				}
+				else if (p instanceof short[]) {
+					short[] shorts = (short[]) p;
+					for (int i = first; i < last; i++) buffer[i] = cTable[shorts[i] & 0xffff];
+				}
+				else if (p instanceof int[]) {
+					int[] rgb = (int[]) p;
+					for (int i = first; i < last; i++) {
+						int c = rgb[i];
+						buffer[i] = (float) (((c & 0xff0000) >> 16) * weights[0] + ((c & 0xff00) >> 8) * weights[1] + (c & 0xff) * weights[2]);
+					}
+				}
+				else System.arraycopy((float[]) p, first, buffer, first, region.width);
+			}
+			pixels = buffer;
+		}
+
+	}
+
+	// least squares or normalized cross-correlation using integral images of the search region
+	static class CorrelationKernel extends ErrorKernel {
+
+		boolean normalized; // normalized cross-correlation, error = 1 - correlation coefficient
+		double refSum; // sum(R)
+		double refSum2; // sum(R^2)
+
+		// search region of the current slice
+		Rectangle region;
+		double[] values;
+		IntegralImage integral;
+
+		CorrelationKernel(int roiWidth, int roiHeight, boolean normalized) {
+			super(roiWidth, roiHeight, 2);
+			this.normalized = normalized;
+		}
+
+		public void setReference(ImageProcessor ip, int roiX, int roiY) {
+			super.setReference(ip, roiX, roiY);
+			refSum = 0;
+			refSum2 = 0;
+			for (int i = 0; i < ref.length; i++) {
+				refSum += ref[i];
+				refSum2 += (double) ref[i] * ref[i];
+			}
+		}
+
+		public void setSlice(ImageProcessor ip) {
+			setSlice(ip, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+		}
+
+		public void setSlice(ImageProcessor ip, Rectangle region) {
+			super.setSlice(ip);
+			this.region = region.intersection(new Rectangle(0, 0, width, height));
+			int n = this.region.width * this.region.height;
+			if (values == null || values.length < n) values = new double[n];
+			for (int y = 0; y < this.region.height; y++) {
+				for (int x = 0; x < this.region.width; x++) {
+					values[y * this.region.width + x] = ip.getPixelValue(this.region.x + x, this.region.y + y);
+				}
+			}
+			if (integral == null) integral = new IntegralImage(values, this.region.width, this.region.height);
+			else integral.update(values, this.region.width, this.region.height);
+		}
+
+		// no early termination: the error does not grow monotonically with the cross term
+		public double computeError(int xzero, int yzero, double limit) {
+			if (!isInside(xzero, yzero)) return Double.NaN;
+			int x0 = xzero - region.x;
+			int y0 = yzero - region.y;
+			if (x0 < 0 || y0 < 0 || x0 + roiWidth > region.width || y0 + roiHeight > region.height) return Double.NaN;
+			double cross = 0; // sum(I * R)
+			for (int y = 0; y < roiHeight; y++) {
+				int pos = (y0 + y) * region.width + x0;
+				int refpos = y * roiWidth;
+				for (int x = 0; x < roiWidth; x++) {
+					cross += values[pos + x] * ref[refpos + x];
+				}
+			}
+			count(roiHeight);
+			double sum2 = integral.sumOfSquares(x0, y0, roiWidth, roiHeight);
+			if (!normalized) return sum2 - 2 * cross + refSum2;
+			int n = roiWidth * roiHeight;
+			double sum = integral.sum(x0, y0, roiWidth, roiHeight);
+			double variance = (sum2 - sum * sum / n) * (refSum2 - refSum * refSum / n);
+			if (variance <= 0) return 1; // constant image or reference: no correlation
+			return 1 - (cross - sum * refSum / n) / Math.sqrt(variance);
+		}
+
+	}
+
+}
@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.process.*;
+import java.util.*;
+
+// Fourier-domain search for the translation of the Roi (used by Alignment_Roi).
+// The search region (Roi enlarged by range on every side) and the reference Roi
+// are zero-padded to a power of 2 and correlated in the frequency domain, which
+// gives the values for all (2 * range + 1)^2 candidate translations at once.
+// Surfaces are indexed [(xtrans + range) * (2 * range + 1) + (ytrans + range)],
+// i.e. in the same order as the candidates of AlignmentEngine.computeBestCorr.
+// Candidates with pixels outside of the image are set to NaN.
+// The transformed reference is kept in a ReferenceCache, so only the search
+// region is transformed for every slice compared with the same reference.
+// Only the least-squares error (exponent 2) can be computed this way.
+public class FFTSearch {
+
+	static final int REFINE = 2; // range checked around the least-squares result for other error exponents
+
+	int roiWidth;
+	int roiHeight;
+	int range;
+	int sizeX; // width of the padded arrays (power of 2)
+	int sizeY; // height of the padded arrays (power of 2)
+
+	// work arrays, reused for every slice
+	double[] regionRe;
+	double[] regionIm;
+	double[] region; // search region in real space (for the window energies)
+	IntegralImage integral; // for the energies of all shifted windows of the search region
+	double tolerance; // upper bound for the rounding errors of the last computeSquaredErrors call
+
+	public FFTSearch(int roiWidth, int roiHeight, int range) {
+		this.roiWidth = roiWidth;
+		this.roiHeight = roiHeight;
+		this.range = range;
+		sizeX = powerOf2(roiWidth + 2 * range);
+		sizeY = powerOf2(roiHeight + 2 * range);
+		regionRe = new double[sizeX * sizeY];
+		regionIm = new double[sizeX * sizeY];
+		region = new double[(roiWidth + 2 * range) * (roiHeight + 2 * range)];
+	}
+
+	// sum of squared differences for all candidates (least-squares error, exponent 2)
+	// computed as sum(I^2) - 2 * sum(I * R) + sum(R^2); the transformed reference is
+	// taken from the cache (computed once per reference)
+	public double[] computeSquaredErrors(ImageProcessor ip, int roiX, int roiY, ReferenceCache cache) {
+		if (cache.spectrumRe == null) transformReference(cache);
+		transformRegion(ip, roiX, roiY, cache.mean);
+
+		// cross-correlation: inverse transform of region * conj(reference)
+		double[] refRe = cache.spectrumRe;
+		double[] refIm = cache.spectrumIm;
+		for (int i = 0; i < regionRe.length; i++) {
+			double re = regionRe[i] * refRe[i] + regionIm[i] * refIm[i];
+			double im = regionIm[i] * refRe[i] - regionRe[i] * refIm[i];
+			regionRe[i] = re;
+			regionIm[i] = im;
+		}
+		fft2d(regionRe, regionIm, sizeX, sizeY, true);
+
+		// energies of all shifted windows of the search region
+		if (integral == null) integral = new IntegralImage(region, roiWidth + 2 * range, roiHeight + 2 * range);
+		else integral.update(region, roiWidth + 2 * range, roiHeight + 2 * range);
+
+		int n = 2 * range + 1;
+		double[] errors = new double[n * n];
+		double maxEnergy = 0;
+		for (int dx = 0; dx < n; dx++) {
+			for (int dy = 0; dy < n; dy++) {
+				if (!isInside(ip, roiX + dx - range, roiY + dy - range)) {
+					errors[dx * n + dy] = Double.NaN;
+					continue;
+				}
+				double energy = integral.sumOfSquares(dx, dy, roiWidth, roiHeight);
+				errors[dx * n + dy] = energy - 2 * regionRe[dy * sizeX + dx] + cache.energy;
+				if (energy > maxEnergy) maxEnergy = energy;
+			}
+		}
+		tolerance = 1e-9 * (maxEnergy + cache.energy);
+		return errors;
+	}
+
+	// mean, energy and transform of the zero-padded reference (mean subtracted, reduces rounding errors)
+	void transformReference(ReferenceCache cache) {
+		float[] ref = cache.ref;
+		double mean = 0;
+		for (int i = 0; i < roiWidth * roiHeight; i++) {
+			mean += ref[i];
+		}
+		mean /= roiWidth * roiHeight;
+
+		double[] refRe = new double[sizeX * sizeY];
+		double[] refIm = new double[sizeX * sizeY];
+		double energy = 0;
+		for (int j = 0; j < roiHeight; j++) {
+			for (int i = 0; i < roiWidth; i++) {
+				double r = ref[j * roiWidth + i] - mean;
+				refRe[j * sizeX + i] = r;
+				energy += r * r;
+			}
+		}
+		fft2d(refRe, refIm, sizeX, sizeY, false);
+
+		cache.mean = mean;
+		cache.energy = energy;
+		cache.spectrumRe = refRe;
+		cache.spectrumIm = refIm;
+	}
+
+	// copies the search region (offset subtracted) to the padded arrays and transforms it
+	void transformRegion(ImageProcessor ip, int roiX, int roiY, double offset) {
+		Arrays.fill(regionRe, 0);
+		Arrays.fill(regionIm, 0);
+
+		int regionWidth = roiWidth + 2 * range;
+		int regionHeight = roiHeight + 2 * range;
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		for (int y = 0; y < regionHeight; y++) {
+			int yImage = roiY - range + y;
+			for (int x = 0; x < regionWidth; x++) {
+				int xImage = roiX - range + x;
+				double v = 0; // pixels outside of the image only occur in invalid candidates
+				if (xImage >= 0 && xImage < width && yImage >= 0 && yImage < height)
+					v = ip.getPixelValue(xImage, yImage) - offset;
+				region[y * regionWidth + x] = v;
+				regionRe[y * sizeX + x] = v;
+			}
+		}
+
+		fft2d(regionRe, regionIm, sizeX, sizeY, false);
+	}
+
+	// whether the Roi at (xzero, yzero) lies completely inside the image
+	boolean isInside(ImageProcessor ip, int xzero, int yzero) {
+		return xzero >= 0 && yzero >= 0 && xzero + roiWidth <= ip.getWidth() && yzero + roiHeight <= ip.getHeight();
+	}
+
+	static int powerOf2(int n) {
+		int size = 1;
+		while (size < n) size *= 2;
+		return size;
+	}
+
+	// 2d FFT of row-major arrays (rows first, then columns), inverse transform is normalized
+	static void fft2d(double[] re, double[] im, int width, int height, boolean inverse) {
+		double[] rowRe = new double[width];
+		double[] rowIm = new double[width];
+		double[] cosRow = cosTable(width);
+		double[] sinRow = sinTable(width);
+		for (int y = 0; y < height; y++) {
+			System.arraycopy(re, y * width, rowRe, 0, width);
+			System.arraycopy(im, y * width, rowIm, 0, width);
+			fft(rowRe, rowIm, cosRow, sinRow, inverse);
+			System.arraycopy(rowRe, 0, re, y * width, width);
+			System.arraycopy(rowIm, 0, im, y * width, width);
+		}
+		double[] colRe = new double[height];
+		double[] colIm = new double[height];
+		double[] cosCol = cosTable(height);
+		double[] sinCol = sinTable(height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				colRe[y] = re[y * width + x];
+				colIm[y] = im[y * width + x];
+			}
+			fft(colRe, colIm, cosCol, sinCol, inverse);
+			for (int y = 0; y < height; y++) {
+				re[y * width + x] = colRe[y];
+				im[y * width + x] = colIm[y];
+			}
+		}
+	}
+
+	// twiddle factors cos(2 pi k / n), sin(2 pi k / n) for k < n / 2
+	static double[] cosTable(int n) {
+		double[] table = new double[n / 2];
+		for (int k = 0; k < n / 2; k++) table[k] = Math.cos(2 * Math.PI * k / n);
+		return table;
+	}
+
+	static double[] sinTable(int n) {
+		double[] table = new double[n / 2];
+		for (int k = 0; k < n / 2; k++) table[k] = Math.sin(2 * Math.PI * k / n);
+		return table;
+	}
+
+	// in-place radix-2 FFT, length has to be a power of 2
+	static void fft(double[] re, double[] im, double[] cos, double[] sin, boolean inverse) {
+		int n = re.length;
+
+		// bit reversal
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+			j ^= bit;
+			if (i < j) {
+				double temp = re[i]; re[i] = re[j]; re[j] = temp;
+				temp = im[i]; im[i] = im[j]; im[j] = temp;
+			}
+		}
+
+		// butterflies
+		for (int len = 2; len <= n; len <<= 1) {
+			int step = n / len;
+			for (int i = 0; i < n; i += len) {
+				for (int j = 0; j < len / 2; j++) {
+					double uRe = cos[j * step];
+					double uIm = inverse ? sin[j * step] : -sin[j * step];
+					int a = i + j;
+					int b = i + j + len / 2;
+					double vRe = re[b] * uRe - im[b] * uIm;
+					double vIm = re[b] * uIm + im[b] * uRe;
+					re[b] = re[a] - vRe;
+					im[b] = im[a] - vIm;
+					re[a] += vRe;
+					im[a] += vIm;
+				}
+			}
+		}
+
+		if (inverse) {
+			for (int i = 0; i < n; i++) {
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.process.*;
+
+// Time points of a hyperstack (used by Alignment_Roi and Prealign_Stack): the
+// slices of a hyperstack with channels (C), planes (Z) and frames (T) are
+// aligned frame by frame, or plane by plane if there is only one frame. This
+// virtual stack has one slice per time point (position): the chosen channel,
+// either the chosen Z plane or a projection of all planes (32 bit, calibration
+// and RGB weights applied). The search only runs on these slices; expand then
+// gives the translation of a time point to all channels and planes of it.
+public class HyperstackView extends VirtualStack {
+
+	static final String[] PLANES = {"current plane", "max. intensity projection", "average projection"};
+
+	ImageStack source;
+	ImagePlus imp; // for the stack index of channel, plane and frame
+	boolean alongFrames; // positions are the frames, otherwise the Z planes of the only frame
+	int channel; // aligned channel
+	int plane; // Z plane if not projected (along frames)
+	String projection = PLANES[0]; // along frames: one of PLANES
+	float[] cTable; // calibration table (or null), applied to projections
+	double[] rgbWeights; // RGB weights (or null), applied to projections
+
+	public HyperstackView(ImagePlus imp) {
+		super(imp.getWidth(), imp.getHeight(), imp.getStack().getColorModel(), null);
+		this.imp = imp;
+		source = imp.getStack();
+		alongFrames = imp.getNFrames() > 1;
+		channel = imp.getC();
+		plane = imp.getZ();
+		ImageProcessor ip = imp.getProcessor();
+		cTable = ip.getCalibrationTable();
+		if (ip instanceof ColorProcessor) rgbWeights = ((ColorProcessor) ip).getRGBWeights();
+	}
+
+	// whether the stack has time points with more than one slice (channels or planes)
+	static boolean isHyperstack(ImagePlus imp) {
+		if (imp.getNFrames() > 1) return imp.getNChannels() * imp.getNSlices() > 1;
+		return imp.getNChannels() > 1 && imp.getNSlices() > 1;
+	}
+
+	// time point of the displayed slice
+	static int getPosition(ImagePlus imp) {
+		return imp.getNFrames() > 1 ? imp.getT() : imp.getZ();
+	}
+
+	static int getPositions(ImagePlus imp) {
+		return imp.getNFrames() > 1 ? imp.getNFrames() : imp.getNSlices();
+	}
+
+	// translations of all slices of the stack from the translations of the time points
+	static int[] expand(ImagePlus imp, int[] translation) {
+		int[] all = new int[imp.getStackSize()];
+		for (int n = 1; n <= all.length; n++) {
+			int[] czt = imp.convertIndexToPosition(n);
+			all[n-1] = translation[(imp.getNFrames() > 1 ? czt[2] : czt[1]) - 1];
+		}
+		return all;
+	}
+
+	boolean isProjection() {
+		return alongFrames && imp.getNSlices() > 1 && !projection.equals(PLANES[0]);
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		if (channel < 1 || channel > imp.getNChannels()) throw new IllegalArgumentException("Invalid channel: " + channel);
+		if (!alongFrames) return source.getProcessor(imp.getStackIndex(channel, n, 1));
+		if (!isProjection()) return source.getProcessor(imp.getStackIndex(channel, plane, n));
+
+		// max. or average of all planes
+		boolean max = projection.equals(PLANES[1]);
+		int planes = imp.getNSlices();
+		FloatProcessor fp = new FloatProcessor(getWidth(), getHeight());
+		float[] result = (float[]) fp.getPixels();
+		if (max) java.util.Arrays.fill(result, Float.NEGATIVE_INFINITY);
+		for (int z = 1; z <= planes; z++) {
+			ImageProcessor ip = source.getProcessor(imp.getStackIndex(channel, z, n));
+			if (rgbWeights != null) ((ColorProcessor) ip).setRGBWeights(rgbWeights);
+			boolean rgb = ip instanceof ColorProcessor;
+			for (int i = 0; i < result.length; i++) {
+				float v = rgb ? ip.getPixelValue(i % getWidth(), i / getWidth()) : ip.getf(i);
+				if (cTable != null) v = cTable[(int) v];
+				if (max) result[i] = Math.max(result[i], v);
+				else result[i] += v / planes;
+			}
+		}
+		return fp;
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public void setPixels(Object pixels, int n) {} // slices are computed from the source stack
+
+	public int getSize() {
+		return getPositions(imp);
+	}
+
+	public int getBitDepth() {
+		return isProjection() ? 32 : source.getBitDepth();
+	}
+
+	public String getSliceLabel(int n) {
+		return (alongFrames ? "t=" : "z=") + n;
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Summed-area tables of the values and squared values of a row-major array:
+// sums over any rectangle in constant time. The arrays are reused if update
+// is called with an array of the same width and height.
+public class IntegralImage {
+
+	int width;
+	int height;
+	double[] sum; // sum of all values above and left of (x, y), size (width + 1) * (height + 1)
+	double[] sum2; // same for squared values
+
+	public IntegralImage(double[] values, int width, int height) {
+		update(values, width, height);
+	}
+
+	public void update(double[] values, int width, int height) {
+		if (sum == null || width != this.width || height != this.height) { // new arrays: first row and column are 0
+			sum = new double[(width + 1) * (height + 1)];
+			sum2 = new double[(width + 1) * (height + 1)];
+		}
+		this.width = width;
+		this.height = height;
+		for (int y = 0; y < height; y++) {
+			double rowsum = 0;
+			double rowsum2 = 0;
+			for (int x = 0; x < width; x++) {
+				double v = values[y * width + x];
+				rowsum += v;
+				rowsum2 += v * v;
+				sum[(y + 1) * (width + 1) + x + 1] = sum[y * (width + 1) + x + 1] + rowsum;
+				sum2[(y + 1) * (width + 1) + x + 1] = sum2[y * (width + 1) + x + 1] + rowsum2;
+			}
+		}
+	}
+
+	// sum of the values in the rectangle (x, y, w, h)
+	public double sum(int x, int y, int w, int h) {
+		return rectangle(sum, x, y, w, h);
+	}
+
+	// sum of the squared values in the rectangle (x, y, w, h)
+	public double sumOfSquares(int x, int y, int w, int h) {
+		return rectangle(sum2, x, y, w, h);
+	}
+
+	double rectangle(double[] table, int x, int y, int w, int h) {
+		int stride = width + 1;
+		return table[(y + h) * stride + x + w] - table[y * stride + x + w] - table[(y + h) * stride + x] + table[y * stride + x];
+	}
+
+}
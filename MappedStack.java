@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Virtual stack of an uncompressed TIFF or raw file which is read through
+// memory-mapped buffers (FileChannel.map) instead of input streams. Every
+// slice (or only the rows of a region, see readRegion) is mapped when it is
+// requested and copied from the buffer to the pixel array in a single step.
+// Alignment_Roi only reads the search region of every slice this way.
+// Supported types: 8 bit, 16 bit unsigned, 32 bit float and RGB (3 x 8 bit),
+// both byte orders; the pixels of a slice have to be contiguous in the file.
+public class MappedStack extends VirtualStack {
+
+	FileInfo fi; // type, size and byte order of the slices
+	long[] offsets; // file position of every slice
+	int bytesPerPixel;
+	RandomAccessFile file;
+	FileChannel channel;
+
+	// opens an uncompressed TIFF file, throws an IOException if it can not be mapped
+	public static MappedStack openTiff(String directory, String name) throws IOException {
+		FileInfo[] info = new TiffDecoder(directory, name).getTiffInfo();
+		if (info == null || info.length == 0) throw new IOException("Not a TIFF file: " + name);
+		FileInfo first = info[0];
+		long[] offsets;
+		if (info.length == 1) { // single image or ImageJ stack (images stored one after the other)
+			offsets = new long[Math.max(1, first.nImages)];
+			long sliceBytes = (long) first.width * first.height * bytesPerPixel(first) + first.gapBetweenImages;
+			for (int n = 0; n < offsets.length; n++) offsets[n] = first.getOffset() + n * sliceBytes;
+		} else { // one IFD for every slice
+			offsets = new long[info.length];
+			for (int n = 0; n < info.length; n++) {
+				if (info[n].width != first.width || info[n].height != first.height || info[n].fileType != first.fileType)
+					throw new IOException("Slices of different size or type: " + name);
+				if (!isContiguous(info[n])) throw new IOException("Slices are not contiguous: " + name);
+				offsets[n] = info[n].getOffset();
+			}
+		}
+		if (!isContiguous(first)) throw new IOException("Slices are not contiguous: " + name);
+		return new MappedStack(first, offsets);
+	}
+
+	// opens a raw file with the layout of fi (width, height, fileType, intelByteOrder,
+	// offset, nImages, gapBetweenImages, directory and fileName)
+	public static MappedStack openRaw(FileInfo fi) throws IOException {
+		long[] offsets = new long[Math.max(1, fi.nImages)];
+		long sliceBytes = (long) fi.width * fi.height * bytesPerPixel(fi) + fi.gapBetweenImages;
+		for (int n = 0; n < offsets.length; n++) offsets[n] = fi.getOffset() + n * sliceBytes;
+		return new MappedStack(fi, offsets);
+	}
+
+	MappedStack(FileInfo fi, long[] offsets) throws IOException {
+		super(fi.width, fi.height, null, fi.directory);
+		if (fi.compression > FileInfo.COMPRESSION_NONE) throw new IOException("Compressed files can not be mapped: " + fi.fileName);
+		if (fi.whiteIsZero) throw new IOException("Inverted images can not be mapped: " + fi.fileName);
+		this.fi = fi;
+		this.offsets = offsets;
+		bytesPerPixel = bytesPerPixel(fi);
+		if (bytesPerPixel == 0) throw new IOException("Type of image can not be mapped: " + fi.fileName);
+		file = new RandomAccessFile(new File(fi.directory, fi.fileName), "r");
+		channel = file.getChannel();
+		long sliceBytes = (long) fi.width * fi.height * bytesPerPixel;
+		if (offsets[offsets.length - 1] + sliceBytes > channel.size()) throw new IOException("File is too short: " + fi.fileName);
+	}
+
+	// bytes per pixel in the file, 0 for unsupported types
+	static int bytesPerPixel(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: return 1;
+			case FileInfo.GRAY16_UNSIGNED: return 2;
+			case FileInfo.GRAY32_FLOAT: return 4;
+			case FileInfo.RGB: return 3;
+			default: return 0;
+		}
+	}
+
+	// whether the strips of a TIFF image are stored one after the other
+	static boolean isContiguous(FileInfo fi) {
+		if (fi.stripOffsets == null || fi.stripOffsets.length <= 1) return true;
+		for (int i = 1; i < fi.stripOffsets.length; i++) {
+			if (fi.stripOffsets[i] != fi.stripOffsets[i-1] + fi.stripLengths[i-1]) return false;
+		}
+		return true;
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		ImageProcessor ip = createProcessor();
+		readRegion(n, new Rectangle(0, 0, getWidth(), getHeight()), ip.getPixels());
+		return ip;
+	}
+
+	// new processor of the type of the slices (all pixels 0)
+	public ImageProcessor createProcessor() {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: return new ByteProcessor(getWidth(), getHeight());
+			case FileInfo.GRAY16_UNSIGNED: return new ShortProcessor(getWidth(), getHeight());
+			case FileInfo.GRAY32_FLOAT: return new FloatProcessor(getWidth(), getHeight());
+			default: return new ColorProcessor(getWidth(), getHeight());
+		}
+	}
+
+	// copies the rectangle r of slice n to the same positions of pixels (array of the
+	// slice size), only the rows of r are mapped; other pixels are not changed
+	public void readRegion(int n, Rectangle r, Object pixels) {
+		int width = getWidth();
+		long rowBytes = (long) width * bytesPerPixel;
+		ByteBuffer buffer;
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[n-1] + r.y * rowBytes, r.height * rowBytes);
+		} catch (IOException e) {
+			throw new RuntimeException("Reading slice " + n + " failed: " + e.getMessage());
+		}
+		buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		for (int j = 0; j < r.height; j++) {
+			int pos = (r.y + j) * width + r.x; // in pixels
+			buffer.position((int) (j * rowBytes) + r.x * bytesPerPixel);
+			switch (fi.fileType) {
+				case FileInfo.GRAY8: buffer.get((byte[]) pixels, pos, r.width); break;
+				case FileInfo.GRAY16_UNSIGNED: buffer.asShortBuffer().get((short[]) pixels, pos, r.width); break;
+				case FileInfo.GRAY32_FLOAT: buffer.asFloatBuffer().get((float[]) pixels, pos, r.width); break;
+				default: {
+					int[] rgb = (int[]) pixels;
+					for (int i = 0; i < r.width; i++) {
+						rgb[pos + i] = 0xff000000 | (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | (buffer.get() & 0xff);
+					}
+				}
+			}
+		}
+	}
+
+	// maps slice n read-only (for MappedStackWriter)
+	ByteBuffer map(int n) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[n-1], (long) getWidth() * getHeight() * bytesPerPixel);
+		buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		return buffer;
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public void setPixels(Object pixels, int n) {} // file is read-only
+
+	public int getSize() {
+		return offsets.length;
+	}
+
+	public int getBitDepth() {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: return 8;
+			case FileInfo.GRAY16_UNSIGNED: return 16;
+			case FileInfo.GRAY32_FLOAT: return 32;
+			default: return 24;
+		}
+	}
+
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	public FileInfo getFileInfo() {
+		return fi;
+	}
+
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.measure.*;
+import ij.process.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Writes translated slices of a stack to an uncompressed TIFF file (used by
+// Alignment_Roi) through memory-mapped buffers. The file has the layout of
+// TIFF stacks saved by ImageJ: header and first IFD, then the pixels of all
+// slices one after the other (big-endian), then the IFDs of the other slices.
+// Files larger than 4 GB only get the first IFD; ImageJ finds the other slices
+// with the number of images in the image description.
+// The file is created with its full size (all pixels 0) and every slice is
+// mapped and filled row by row. If the source is a MappedStack of the same
+// type and byte order, the rows are copied from buffer to buffer without
+// reading the slice into a pixel array.
+public class MappedStackWriter {
+
+	static final int HEADER_SIZE = 8;
+	static final int ENTRY_SIZE = 12;
+
+	int width;
+	int height;
+	int nImages;
+	int channels = 1; // hyperstack dimensions (channels * slices * frames = nImages)
+	int slices;
+	int frames = 1;
+	int bitDepth;
+	int bytesPerPixel;
+	long sliceBytes;
+	Calibration cal;
+	FileChannel channel;
+
+	public MappedStackWriter(ImageStack stack, Calibration cal) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		nImages = stack.getSize();
+		slices = nImages;
+		bitDepth = stack.getBitDepth();
+		bytesPerPixel = bitDepth == 24 ? 3 : bitDepth / 8;
+		sliceBytes = (long) width * height * bytesPerPixel;
+		this.cal = cal;
+	}
+
+	// dimensions of a hyperstack (slices in the order of ImageJ: channels, slices, frames)
+	public void setDimensions(int channels, int slices, int frames) {
+		if (channels * slices * frames != nImages) throw new IllegalArgumentException("Dimensions do not match the number of images");
+		this.channels = channels;
+		this.slices = slices;
+		this.frames = frames;
+	}
+
+	// writes slice n of source moved by (dx[n-1], dy[n-1]) px to the file path
+	public static void write(ImageStack source, int[] dx, int[] dy, Calibration cal, String path) throws IOException {
+		new MappedStackWriter(source, cal).writeTranslated(source, dx, dy, path);
+	}
+
+	public void writeTranslated(ImageStack source, int[] dx, int[] dy, String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			channel = file.getChannel();
+			byte[] description = description();
+			boolean calibrated = cal != null && cal.scaled();
+			int entries = 10 + (calibrated ? 3 : 0) + (bitDepth == 32 ? 1 : 0);
+			int ifdSize = 2 + entries * ENTRY_SIZE + 4;
+			long ifd0Extra = HEADER_SIZE + ifdSize; // bits per sample (RGB), resolution, description
+			long imageOffset = ifd0Extra + 6 + 16 + description.length;
+			imageOffset += imageOffset % 2;
+			long imagesEnd = imageOffset + nImages * sliceBytes;
+			boolean allIFDs = imagesEnd + (long) (nImages - 1) * ifdSize < 0xffffffffL;
+			long fileSize = allIFDs ? imagesEnd + (long) (nImages - 1) * ifdSize : imagesEnd;
+
+			file.setLength(0); // old content must not remain in the areas of 0 pixels
+			file.setLength(fileSize);
+
+			// header and first IFD
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, imageOffset);
+			header.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(HEADER_SIZE);
+			writeIFD(header, entries, imageOffset, ifd0Extra, description.length, allIFDs && nImages > 1 ? imagesEnd : 0);
+			header.position((int) ifd0Extra);
+			header.putShort((short) 8).putShort((short) 8).putShort((short) 8); // bits per sample of RGB images
+			header.putInt((int) (resolution(cal == null ? 1 : cal.pixelWidth) * 1000)).putInt(1000); // x resolution
+			header.putInt((int) (resolution(cal == null ? 1 : cal.pixelHeight) * 1000)).putInt(1000); // y resolution
+			header.put(description);
+
+			// pixels
+			for (int n = 1; n <= nImages; n++) {
+				ByteBuffer slice = channel.map(FileChannel.MapMode.READ_WRITE, imageOffset + (n - 1) * sliceBytes, sliceBytes);
+				writeSlice(source, n, dx[n-1], dy[n-1], slice);
+				IJ.showProgress(n, nImages);
+			}
+
+			// IFDs of the other slices
+			if (allIFDs && nImages > 1) {
+				ByteBuffer ifds = channel.map(FileChannel.MapMode.READ_WRITE, imagesEnd, fileSize - imagesEnd);
+				for (int n = 2; n <= nImages; n++) {
+					long next = n < nImages ? imagesEnd + (long) (n - 1) * ifdSize : 0;
+					writeIFD(ifds, entries, imageOffset + (n - 1) * sliceBytes, ifd0Extra, 0, next);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	// writes an IFD at the position of the buffer; description of the first image only
+	void writeIFD(ByteBuffer buffer, int entries, long imageOffset, long extra, int descriptionLength, long nextIFD) {
+		buffer.putShort((short) entries);
+		entry(buffer, 254, 4, 1, 0); // new subfile type
+		entry(buffer, 256, 4, 1, width);
+		entry(buffer, 257, 4, 1, height);
+		if (bitDepth == 24) entry(buffer, 258, 3, 3, extra); // bits per sample
+		else entry(buffer, 258, 3, 1, bitDepth << 16);
+		entry(buffer, 262, 3, 1, (bitDepth == 24 ? 2 : 1) << 16); // photometric interpretation: RGB or black is zero
+		if (descriptionLength > 0) entry(buffer, 270, 2, descriptionLength, extra + 6 + 16);
+		else entry(buffer, 270, 2, 1, 0); // empty description
+		entry(buffer, 273, 4, 1, imageOffset); // strip offsets
+		entry(buffer, 277, 3, 1, (bitDepth == 24 ? 3 : 1) << 16); // samples per pixel
+		entry(buffer, 278, 4, 1, height); // rows per strip
+		entry(buffer, 279, 4, 1, sliceBytes); // strip byte counts
+		if (cal != null && cal.scaled()) {
+			entry(buffer, 282, 5, 1, extra + 6);
+			entry(buffer, 283, 5, 1, extra + 6 + 8);
+			entry(buffer, 296, 3, 1, 1 << 16); // resolution unit: none, unit is in the description
+		}
+		if (bitDepth == 32) entry(buffer, 339, 3, 1, 3 << 16); // sample format: floating point
+		buffer.putInt((int) nextIFD);
+	}
+
+	// tag, type, count and value (short values in the upper 16 bits) or offset
+	static void entry(ByteBuffer buffer, int tag, int type, int count, long value) {
+		buffer.putShort((short) tag).putShort((short) type).putInt(count).putInt((int) value);
+	}
+
+	static double resolution(double pixelSize) { // pixels per unit
+		if (pixelSize <= 0) return 1;
+		return Math.min(1.0 / pixelSize, Integer.MAX_VALUE / 1000);
+	}
+
+	// ImageJ image description (null-terminated)
+	byte[] description() {
+		StringBuilder sb = new StringBuilder("ImageJ=" + IJ.getVersion() + "\n");
+		if (nImages > 1) sb.append("images=" + nImages + "\n");
+		if (channels > 1) sb.append("channels=" + channels + "\n");
+		if (slices > 1) sb.append("slices=" + slices + "\n");
+		if (frames > 1) sb.append("frames=" + frames + "\n");
+		if (channels > 1 || frames > 1) sb.append("hyperstack=true\n");
+		if (cal != null && cal.scaled()) { // same unit names as ImageJ
+			String unit = cal.getUnit();
+			if (unit.equals("\u00B5m")) unit = "micron";
+			sb.append("unit=" + unit + "\n");
+		}
+		sb.append('\0');
+		try {
+			return sb.toString().getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			return sb.toString().getBytes();
+		}
+	}
+
+	// copies slice n of source, moved by (dx, dy), to the mapped slice buffer (all pixels 0)
+	void writeSlice(ImageStack source, int n, int dx, int dy, ByteBuffer slice) throws IOException {
+		if (Math.abs(dx) >= width || Math.abs(dy) >= height) return; // moved out completely
+		int length = width - Math.abs(dx); // pixels per row
+		int srcX = Math.max(0, - dx);
+		int dstX = Math.max(0, dx);
+
+		if (source instanceof MappedStack && isCompatible((MappedStack) source)) { // buffer to buffer
+			ByteBuffer src = ((MappedStack) source).map(n);
+			for (int y = Math.max(0, dy); y < height + Math.min(0, dy); y++) {
+				int srcPos = ((y - dy) * width + srcX) * bytesPerPixel;
+				src.clear();
+				src.position(srcPos);
+				src.limit(srcPos + length * bytesPerPixel);
+				slice.position((y * width + dstX) * bytesPerPixel);
+				slice.put(src);
+			}
+			return;
+		}
+
+		Object pixels = source.getProcessor(n).getPixels();
+		for (int y = Math.max(0, dy); y < height + Math.min(0, dy); y++) {
+			int srcPos = (y - dy) * width + srcX;
+			slice.position((y * width + dstX) * bytesPerPixel);
+			if (pixels instanceof byte[]) slice.put((byte[]) pixels, srcPos, length);
+			else if (pixels instanceof short[]) slice.asShortBuffer().put((short[]) pixels, srcPos, length);
+			else if (pixels instanceof float[]) slice.asFloatBuffer().put((float[]) pixels, srcPos, length);
+			else {
+				int[] rgb = (int[]) pixels;
+				for (int i = srcPos; i < srcPos + length; i++) {
+					slice.put((byte) (rgb[i] >> 16)).put((byte) (rgb[i] >> 8)).put((byte) rgb[i]);
+				}
+			}
+		}
+	}
+
+	// whether the bytes of the source file can be copied without conversion (big-endian)
+	boolean isCompatible(MappedStack source) {
+		return source.getBitDepth() == bitDepth && (bytesPerPixel == 1 || bitDepth == 24 || !source.getFileInfo().intelByteOrder);
+	}
+
+}
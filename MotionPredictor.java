@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Prediction of the shift of the Roi from one slice to the next (used by
+// Alignment_Roi), so the search window can be centered on the predicted
+// position instead of the last position. Steady drift (stage creep, thermal
+// drift) is then found with a small range.
+//  - "none": no prediction, the search is centered on the last position
+//  - "constant velocity": same shift as from the previous slice
+//  - "linear fit": straight line fitted to the last HISTORY shifts, extrapolated
+//    to the next slice (follows drift that speeds up or slows down)
+// Call reset when the tracking starts again at another slice.
+public class MotionPredictor {
+
+	static final String[] METHODS = {"none", "constant velocity", "linear fit"};
+	static final int HISTORY = 5; // number of shifts used by the linear fit
+
+	String method;
+	int[] shiftX = new int[HISTORY]; // last shifts, shiftX[count % HISTORY] is the oldest if count >= HISTORY
+	int[] shiftY = new int[HISTORY];
+	int count; // number of shifts since reset
+
+	public MotionPredictor(String method) {
+		this.method = method;
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	// shift of the Roi from the previous to the current slice
+	public void add(int dx, int dy) {
+		shiftX[count % HISTORY] = dx;
+		shiftY[count % HISTORY] = dy;
+		count++;
+	}
+
+	public int predictX() {
+		return predict(shiftX);
+	}
+
+	public int predictY() {
+		return predict(shiftY);
+	}
+
+	int predict(int[] shift) {
+		if (count == 0 || method.equals("none")) return 0;
+		if (method.equals("constant velocity") || count == 1) return shift[(count - 1) % HISTORY];
+
+		// least-squares line through (i, shift) for the last n shifts, i = 0...n-1, evaluated at i = n
+		int n = Math.min(count, HISTORY);
+		double sumI = 0, sumS = 0, sumII = 0, sumIS = 0;
+		for (int i = 0; i < n; i++) {
+			int s = shift[(count - n + i) % HISTORY];
+			sumI += i;
+			sumS += s;
+			sumII += i * i;
+			sumIS += i * s;
+		}
+		double slope = (n * sumIS - sumI * sumS) / (n * sumII - sumI * sumI);
+		double intercept = (sumS - slope * sumI) / n;
+		return (int) Math.round(intercept + slope * n);
+	}
+
+}
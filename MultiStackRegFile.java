@@ -0,0 +1,192 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+
+// MultiStackReg transformation file (version 1.0) as written by Alignment_Roi and
+// Prealign_Stack: one TRANSLATION per slice except the target slice (refSlice). The
+// source landmark of slice i is the image center moved by the translation from slice
+// i to its neighbor towards the target (i+1 before, i-1 after the target), the target
+// landmark is the image center:
+//   TRANSLATION
+//   Source img: i Target img: refSlice
+//   posX	posY        source landmark (and two unused ones)
+//   0.0	0.0
+//   0.0	0.0
+//
+//   x0	y0          target landmark (and two unused ones)
+//   0.0	0.0
+//   0.0	0.0
+//
+// read adds these translations up from the target slice, which gets no correction.
+public class MultiStackRegFile {
+
+	static final String HEADER = "MultiStackReg Transformation File";
+	static final String VERSION = "File Version 1.0";
+
+	// writes the corrections x, y (index n-1 for slice n) of images with the given size; every
+	// slice of the stack gets a translation (also outside of the aligned range), so the file
+	// can be applied to the stack again
+	public static void write(String path, int[] x, int[] y, int refSlice, int width, int height) throws IOException {
+		int stackSize = x.length;
+		Writer fw = new BufferedWriter(new FileWriter(path));
+		fw.write(HEADER + "\n");
+		fw.write(VERSION + "\n");
+		fw.write("0\n"); // no two stack align (MultiStackReg), otherwise: 1
+
+		int x0 = width / 2;
+		int y0 = height / 2;
+
+		int[] posX = new int[stackSize]; // position of the image center in the source image
+		int[] posY = new int[stackSize];
+
+		if (refSlice > 1)
+		for (int i = refSlice-1; i >= 1; i--) {
+			posX[i-1] = x0 - x[i-1] + x[i];
+			posY[i-1] = y0 - y[i-1] + y[i];
+		}
+
+		if (refSlice < stackSize)
+		for (int i = refSlice+1; i <= stackSize; i++) {
+			posX[i-1] = x0 - x[i-1] + x[i-2];
+			posY[i-1] = y0 - y[i-1] + y[i-2];
+		}
+
+		if (refSlice > 1)
+		for (int i = refSlice-1; i >= 1; i--) {
+			writeTranslation(fw, i, refSlice, posX[i-1], posY[i-1], x0, y0);
+		}
+
+		if (refSlice < stackSize)
+		for (int i = refSlice+1; i <= stackSize; i++) {
+			writeTranslation(fw, i, refSlice, posX[i-1], posY[i-1], x0, y0);
+		}
+
+		fw.close();
+	}
+
+	static void writeTranslation(Writer fw, int source, int target, int posX, int posY, int x0, int y0) throws IOException {
+		fw.write("TRANSLATION\n");
+		fw.write("Source img: " + source + " Target img: " + target + "\n");
+		fw.write(posX + "\t" + posY + "\n");
+		fw.write("0.0\t0.0\n0.0\t0.0\n");
+		fw.write("" + "\n");
+		fw.write(x0 + "\t" + y0 + "\n");
+		fw.write("0.0\t0.0\n0.0\t0.0\n");
+		fw.write("" + "\n");
+	}
+
+	// corrections of all slices up to the last image in a file, translations multiplied by
+	// scale (e.g. 2 for a file computed on a copy with 2 x 2 binning) and rounded to whole
+	// pixels; the file is read line by line, slices without a transformation get the
+	// correction of their neighbor towards the target slice
+	public static Corrections read(String path, double scale) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		try {
+			if (!HEADER.equals(trimmed(reader.readLine()))) throw new IOException("No MultiStackReg transformation file: " + path);
+			String version = trimmed(reader.readLine());
+			if (!VERSION.equals(version)) throw new IOException("Unsupported MultiStackReg file version: " + version);
+			if (!"0".equals(trimmed(reader.readLine()))) throw new IOException("Two-stack MultiStackReg files are not supported");
+
+			double[] tx = new double[256]; // translation from slice n to its neighbor towards the target (index n-1)
+			double[] ty = new double[256];
+			int images = 0; // last image in the file
+			int refSlice = 0;
+			String line;
+			int lineNumber = 3;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0) continue;
+				if (!line.equals("TRANSLATION")) throw new IOException("Line " + lineNumber + ": only translations are supported (" + line + ")");
+
+				line = reader.readLine(); // Source img: i Target img: j
+				lineNumber++;
+				String[] words = line != null ? line.trim().split("\\s+") : new String[0];
+				if (words.length != 6) throw new IOException("Line " + lineNumber + ": source and target image expected");
+				int source = parseInt(words[2], lineNumber);
+				int target = parseInt(words[5], lineNumber);
+				if (source < 1 || target < 1 || source == target) throw new IOException("Line " + lineNumber + ": invalid source or target image");
+				if (refSlice == 0) refSlice = target;
+				else if (target != refSlice) throw new IOException("Line " + lineNumber + ": all transformations need the same target image");
+
+				double[] sourcePoint = readPoint(reader, ++lineNumber);
+				skipLines(reader, 3);
+				double[] targetPoint = readPoint(reader, lineNumber += 4);
+				skipLines(reader, 2);
+				lineNumber += 2;
+				if (Math.max(source, target) > tx.length) {
+					tx = java.util.Arrays.copyOf(tx, Math.max(Math.max(source, target), 2 * tx.length));
+					ty = java.util.Arrays.copyOf(ty, tx.length);
+				}
+				tx[source-1] = targetPoint[0] - sourcePoint[0];
+				ty[source-1] = targetPoint[1] - sourcePoint[1];
+				images = Math.max(images, Math.max(source, target));
+			}
+			if (images == 0) throw new IOException("No transformations in " + path);
+
+			// add up from the target slice outwards
+			int[] x = new int[images];
+			int[] y = new int[images];
+			double sumX = 0;
+			double sumY = 0;
+			for (int i = refSlice-1; i >= 1; i--) {
+				sumX += tx[i-1];
+				sumY += ty[i-1];
+				x[i-1] = (int) Math.round(sumX * scale);
+				y[i-1] = (int) Math.round(sumY * scale);
+			}
+			sumX = 0;
+			sumY = 0;
+			for (int i = refSlice+1; i <= images; i++) {
+				sumX += tx[i-1];
+				sumY += ty[i-1];
+				x[i-1] = (int) Math.round(sumX * scale);
+				y[i-1] = (int) Math.round(sumY * scale);
+			}
+			return new Corrections(x, y, new int[images], 1, images, refSlice, Double.NaN);
+		} finally {
+			reader.close();
+		}
+	}
+
+	static String trimmed(String line) {
+		return line != null ? line.trim() : null;
+	}
+
+	static int parseInt(String s, int lineNumber) throws IOException {
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new IOException("Line " + lineNumber + ": number expected (" + s + ")");
+		}
+	}
+
+	static double[] readPoint(BufferedReader reader, int lineNumber) throws IOException {
+		String line = reader.readLine();
+		if (line == null) throw new IOException("Line " + lineNumber + ": unexpected end of file");
+		String[] xy = line.trim().split("\\s+");
+		try {
+			return new double[] {Double.parseDouble(xy[0]), Double.parseDouble(xy[1])};
+		} catch (RuntimeException e) {
+			throw new IOException("Line " + lineNumber + ": landmark expected (" + line + ")");
+		}
+	}
+
+	static void skipLines(BufferedReader reader, int lines) throws IOException {
+		for (int i = 0; i < lines; i++) reader.readLine();
+	}
+
+}
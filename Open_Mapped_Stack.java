@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import ij.io.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.plugin.*;
+import java.io.*;
+
+// Opens an uncompressed TIFF or raw file as a memory-mapped virtual stack (MappedStack),
+// e.g. as input for Alignment_Roi.
+public class Open_Mapped_Stack implements PlugIn {
+
+	public void run(String arg) {
+
+		OpenDialog od = new OpenDialog("Open Mapped Stack...", arg);
+		String directory = od.getDirectory();
+		String name = od.getFileName();
+		if (name == null) return;
+
+		try {
+			MappedStack stack;
+			if (name.toLowerCase().endsWith(".tif") || name.toLowerCase().endsWith(".tiff")) {
+				stack = MappedStack.openTiff(directory, name);
+			} else { // raw file: layout from dialog
+				GenericDialog gd = new GenericDialog("Open Mapped Stack");
+				String[] types = {"8-bit", "16-bit unsigned", "32-bit real", "24-bit RGB"};
+				gd.addChoice("Image type", types, "16-bit unsigned");
+				gd.addNumericField("Width", 512, 0);
+				gd.addNumericField("Height", 512, 0);
+				gd.addNumericField("Offset to first image", 0, 0);
+				gd.addNumericField("Number of images", 0, 0); // 0: all images in the file
+				gd.addNumericField("Gap between images", 0, 0);
+				gd.addCheckbox("Little-endian byte order", false);
+				gd.showDialog();
+				if (gd.wasCanceled()) return;
+
+				FileInfo fi = new FileInfo();
+				fi.fileFormat = FileInfo.RAW;
+				fi.directory = directory;
+				fi.fileName = name;
+				int[] fileTypes = {FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY32_FLOAT, FileInfo.RGB};
+				fi.fileType = fileTypes[gd.getNextChoiceIndex()];
+				fi.width = (int) gd.getNextNumber();
+				fi.height = (int) gd.getNextNumber();
+				fi.longOffset = (long) gd.getNextNumber();
+				fi.nImages = (int) gd.getNextNumber();
+				fi.gapBetweenImages = (int) gd.getNextNumber();
+				fi.intelByteOrder = gd.getNextBoolean();
+				if (fi.nImages <= 0) { // as many images as the file contains
+					long sliceBytes = (long) fi.width * fi.height * MappedStack.bytesPerPixel(fi);
+					long length = new File(directory, name).length();
+					fi.nImages = (int) ((length - fi.longOffset + fi.gapBetweenImages) / (sliceBytes + fi.gapBetweenImages));
+				}
+				stack = MappedStack.openRaw(fi);
+			}
+
+			ImagePlus imp = new ImagePlus(name, stack);
+			FileInfo fi = stack.getFileInfo();
+			if (fi.unit != null && fi.pixelWidth > 0 && fi.pixelHeight > 0) { // spatial calibration of the TIFF file
+				Calibration cal = imp.getCalibration();
+				cal.setUnit(fi.unit);
+				cal.pixelWidth = fi.pixelWidth;
+				cal.pixelHeight = fi.pixelHeight;
+			}
+			imp.show();
+
+		} catch (IOException e) {
+			IJ.error("Open Mapped Stack", e.getMessage());
+		}
+
+	}
+
+}
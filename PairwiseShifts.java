@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Shifts between every slice i and the following slices i+1...i+neighbors
+// (used by Alignment_Roi, "k nearest slices" mode) and the corrections of all
+// slices that fit them best: the corrections c minimize the sum of
+// (c[j] - c[i] - shift(i, j))^2 over all pairs. Errors of single shifts are
+// thus averaged instead of being added up from slice to slice.
+// The normal equations of this least-squares problem have a band matrix
+// (bandwidth neighbors, slice firstSlice fixed to 0), which is solved by a
+// Cholesky decomposition of the band in O(slices * neighbors^2).
+public class PairwiseShifts {
+
+	int firstSlice;
+	int lastSlice;
+	int neighbors; // number of following slices compared with every slice
+	int[] shiftX; // shift of slice i+d relative to slice i at index (i - firstSlice) * neighbors + d - 1
+	int[] shiftY;
+
+	public PairwiseShifts(int firstSlice, int lastSlice, int neighbors) {
+		this.firstSlice = firstSlice;
+		this.lastSlice = lastSlice;
+		this.neighbors = neighbors;
+		shiftX = new int[(lastSlice - firstSlice + 1) * neighbors];
+		shiftY = new int[shiftX.length];
+	}
+
+	// correction of slice j minus correction of slice i, j = i+1...i+neighbors (may be called from several threads)
+	public void set(int i, int j, int dx, int dy) {
+		shiftX[index(i, j)] = dx;
+		shiftY[index(i, j)] = dy;
+	}
+
+	int index(int i, int j) {
+		return (i - firstSlice) * neighbors + j - i - 1;
+	}
+
+	// corrections of firstSlice...lastSlice (correction of firstSlice = 0), {x, y}
+	public double[][] solve() {
+		int n = lastSlice - firstSlice; // unknowns: slices firstSlice+1...lastSlice
+		int k = neighbors;
+		double[][] band = new double[n][k + 1]; // band[r][r - c]: element (r, c) of the matrix, c = r-k...r
+		double[] bx = new double[n];
+		double[] by = new double[n];
+		for (int i = firstSlice; i < lastSlice; i++) {
+			for (int j = i + 1; j <= Math.min(i + k, lastSlice); j++) {
+				int r = j - firstSlice - 1; // row of slice j
+				int c = i - firstSlice - 1; // row of slice i, -1 for firstSlice (fixed)
+				band[r][0] += 1;
+				bx[r] += shiftX[index(i, j)];
+				by[r] += shiftY[index(i, j)];
+				if (c < 0) continue;
+				band[c][0] += 1;
+				band[r][r - c] -= 1;
+				bx[c] -= shiftX[index(i, j)];
+				by[c] -= shiftY[index(i, j)];
+			}
+		}
+		choleskyBand(band, k);
+		double[][] corrections = new double[2][n + 1];
+		solveBand(band, k, bx, corrections[0]);
+		solveBand(band, k, by, corrections[1]);
+		return corrections;
+	}
+
+	// root mean square of c[j] - c[i] - shift(i, j) over all pairs
+	public double residual(double[][] corrections) {
+		double sum = 0;
+		int count = 0;
+		for (int i = firstSlice; i < lastSlice; i++) {
+			for (int j = i + 1; j <= Math.min(i + neighbors, lastSlice); j++) {
+				double rx = corrections[0][j - firstSlice] - corrections[0][i - firstSlice] - shiftX[index(i, j)];
+				double ry = corrections[1][j - firstSlice] - corrections[1][i - firstSlice] - shiftY[index(i, j)];
+				sum += rx * rx + ry * ry;
+				count++;
+			}
+		}
+		return count > 0 ? Math.sqrt(sum / count) : 0;
+	}
+
+	// in place: band of the lower triangular matrix L with L * L^T = matrix
+	static void choleskyBand(double[][] band, int k) {
+		for (int r = 0; r < band.length; r++) {
+			for (int c = Math.max(0, r - k); c <= r; c++) {
+				double sum = band[r][r - c];
+				for (int m = Math.max(0, r - k); m < c; m++) {
+					if (c - m <= k) sum -= band[r][r - m] * band[c][c - m];
+				}
+				if (c == r) band[r][0] = Math.sqrt(sum);
+				else band[r][r - c] = sum / band[c][0];
+			}
+		}
+	}
+
+	// solves L * L^T * x = b, x[0] = 0 (firstSlice), x[r + 1] for row r
+	static void solveBand(double[][] band, int k, double[] b, double[] x) {
+		int n = band.length;
+		double[] y = new double[n];
+		for (int r = 0; r < n; r++) { // L * y = b
+			double sum = b[r];
+			for (int c = Math.max(0, r - k); c < r; c++) sum -= band[r][r - c] * y[c];
+			y[r] = sum / band[r][0];
+		}
+		for (int r = n - 1; r >= 0; r--) { // L^T * x = y
+			double sum = y[r];
+			for (int c = r + 1; c <= Math.min(n - 1, r + k); c++) sum -= band[c][c - r] * x[c + 1];
+			x[r + 1] = sum / band[r][0];
+		}
+	}
+
+}
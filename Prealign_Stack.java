@@ -21,6 +21,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import ij.plugin.filter.*;
 
 public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener, ImageListener {
@@ -30,7 +31,8 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 	ImageCanvas imCanvas;
 	ImageWindow win;
 
-	int stackSize; // will contain number of slices
+	int stackSize; // will contain number of slices (hyperstacks: number of time points)
+	boolean hyperstack; // one position per time point, applied to all channels and planes (see HyperstackView)
 	int currentSlice; // the slice which is active when plugin is finished
 
 	// arrays: size will be stackSize
@@ -47,6 +49,7 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 	boolean saveToFile; // save to MultiStackReg file
 	boolean alignX; // whether x ...
 	boolean alignY; // ... and y alignment should be applied
+	boolean virtualOutput; // show the alignment as a new virtual stack instead of changing the image
 	int firstClicked; // first slice with clickPoint
 	int lastClicked; // last slice with clickPoint
 	
@@ -68,6 +71,8 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		// get image stack
 		ImageStack stack = imp.getStack();
 		stackSize = stack.getSize(); // number of slices
+		hyperstack = HyperstackView.isHyperstack(imp);
+		if (hyperstack) stackSize = HyperstackView.getPositions(imp); // frames (or planes of a single frame)
 		imp.killRoi(); // may avoid errors
 		win = imp.getWindow(); // necessary to get canvas
 		imCanvas = win.getCanvas(); // canvas for mouse click listener
@@ -109,8 +114,10 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		gd.addCheckbox("Save MultiStackReg File", false);
 		gd.addCheckbox("Apply x alignment", true);
 		gd.addCheckbox("Apply y alignment", true);
+		gd.addCheckbox("Output virtual stack (keep original)", false);
 
 		// Message at the bottom of the dialog
+		if (hyperstack) gd.addMessage("Hyperstack: slices are " + (imp.getNFrames() > 1 ? "frames" : "Z planes") + ", all channels and planes are translated.");
 		gd.addMessage("Click OK to start Plugin. ESC cancels Plugin.\n" + 
 				"Mark positions at least on one slice and finish by pressing ENTER.");
 
@@ -131,6 +138,7 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		saveToFile = gd.getNextBoolean(); // save MultiStackReg file
 		alignX = gd.getNextBoolean();
 		alignY = gd.getNextBoolean();
+		virtualOutput = gd.getNextBoolean();
 
 		//
 		// correct some errors in user input
@@ -163,7 +171,7 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		firstClicked = stackSize; // appropriate initialization: firstSlice will be <= lastSlice if any slice is clicked
 		lastClicked = 1; // appropriate initialization: same principle as above
 
-		imp.setSlice(firstSlice); // start with firstSlice
+		setPosition(firstSlice); // start with firstSlice
 	}
 
 	// handle MouseEvents
@@ -179,13 +187,14 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		// IJ.showMessage(xPos + ", " + yPos); // uncomment to display every ClickPoint
 
 		// save clickPoint
-		clickPoint[imp.getSlice()-1] = new Point(xPos, yPos);
-		clicked[imp.getSlice() - 1] = true;
-		if (imp.getSlice() < firstClicked) firstClicked = imp.getSlice(); // adjust first / clicked Slice
-		if (imp.getSlice() > lastClicked) lastClicked = imp.getSlice();
+		int slice = getPosition();
+		clickPoint[slice-1] = new Point(xPos, yPos);
+		clicked[slice - 1] = true;
+		if (slice < firstClicked) firstClicked = slice; // adjust first / clicked Slice
+		if (slice > lastClicked) lastClicked = slice;
 
 		// go to next slice
-		imp.setSlice(imp.getSlice()+1); // go to next slice
+		if (slice < stackSize) setPosition(slice+1); // go to next slice
 
 	}
 	
@@ -194,7 +203,7 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 
 		if (e.getKeyChar() == 10) { // the ENTER key is pressed
 		
-			currentSlice = imp.getSlice(); // for 'adjust to currently selected slice' option
+			currentSlice = getPosition(); // for 'adjust to currently selected slice' option
 
 			// show second dialog
 			GenericDialog infoGd = new GenericDialog("Prealign Stack");
@@ -312,53 +321,13 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 			String fileName = sd.getFileName();
 			if (fileName == null) return;
 			try {
-				FileWriter fw = new FileWriter(directory + fileName);
-				fw.write("MultiStackReg Transformation File\n");
-				fw.write("File Version 1.0\n");
-				fw.write("0\n"); // no two stack align (MultiStackReg), otherwise: 1
-				
-				int x0 = imp.getWidth() / 2;
-				int y0 = imp.getHeight() / 2;
 				int[] x = new int[stackSize];
 				int[] y = new int[stackSize];
-
-				if (refSlice > 1)
-				for (int i = refSlice-1; i >= 1; i--) {
-					x[i-1] = (int) (x0 - correction[i-1].getX() + correction[i].getX());
-					y[i-1] = (int) (y0 - correction[i-1].getY() + correction[i].getY());
-				}
-
-				if (refSlice < lastSlice)
-				for (int i = refSlice+1; i <= stackSize; i++) {
-					x[i-1] = (int) (x0 - correction[i-1].getX() + correction[i-2].getX());
-					y[i-1] = (int) (y0 - correction[i-1].getY() + correction[i-2].getY());	
-				}
-
-				if (refSlice > 1)
-				for (int i = refSlice-1; i >= 1; i--) {
-					fw.write("TRANSLATION\n");
-					fw.write("Source img: " + i + " Target img: " + refSlice + "\n");
-					fw.write(x[i-1] + "\t" + y[i-1] + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");
-					fw.write(x0 + "\t" + y0 + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");		
-				}
-
-				if (refSlice < lastSlice)
-				for (int i = refSlice+1; i <= stackSize; i++) {
-					fw.write("TRANSLATION\n");
-					fw.write("Source img: " + i + " Target img: " + refSlice + "\n");
-					fw.write(x[i-1] + "\t" + y[i-1] + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");
-					fw.write(x0 + "\t" + y0 + "\n");
-					fw.write("0.0\t0.0\n0.0\t0.0\n");
-					fw.write("" + "\n");	
+				for (int i = 1; i <= stackSize; i++) {
+					x[i-1] = correction[i-1].x;
+					y[i-1] = correction[i-1].y;
 				}
-		
-				fw.close();
+				MultiStackRegFile.write(directory + fileName, x, y, refSlice, imp.getWidth(), imp.getHeight());
 			} catch (IOException ioe) {IJ.showMessage("Saving MultiStackReg File failed.");}
 
 		}
@@ -373,6 +342,16 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 
 	}
 	
+	int getPosition() { // displayed slice (hyperstacks: time point)
+		return hyperstack ? HyperstackView.getPosition(imp) : imp.getSlice();
+	}
+
+	void setPosition(int slice) { // displays a slice (hyperstacks: time point)
+		if (!hyperstack) imp.setSlice(slice);
+		else if (imp.getNFrames() > 1) imp.setT(slice);
+		else imp.setZ(slice);
+	}
+
 	public void getCorrections() { // clickPoints & refPoint -> corrections
 		Point refPoint = clickPoint[refSlice-1]; // correction of refSlice has to be (0, 0)
 		for (int i = 1; i <= stackSize; i++) { // correct offset
@@ -382,23 +361,41 @@ public class Prealign_Stack implements PlugInFilter, MouseListener, KeyListener,
 		}
 	}
 	
-	public void translate(boolean doX, boolean doY) { // applies corrections using ImageJ's Translate function
-
-		int slicetmp = imp.getSlice(); // save selected slice to restore selection afterwards
+	public void translate(boolean doX, boolean doY) { // applies corrections by shifting the pixel arrays of all slices
 
+		int[] dx = new int[stackSize];
+		int[] dy = new int[stackSize];
 		for (int i = 1; i <= stackSize; i++) {
+			if (doX) dx[i-1] = correction[i-1].x;
+			if (doY) dy[i-1] = correction[i-1].y;
+		}
+		if (hyperstack) { // same translation for all channels and planes of a time point
+			dx = HyperstackView.expand(imp, dx);
+			dy = HyperstackView.expand(imp, dy);
+		}
 
-			imp.setSlice(i);
+		// slices of a virtual stack are read from disk again when they are displayed,
+		// so they can not be translated in place
+		if (imp.getStack().isVirtual()) virtualOutput = true;
 
-			if (doX && doY)
-			  IJ.run("Translate...", "x=" + correction[i-1].getX() + " y=" + correction[i-1].getY() + " interpolation=None slice");
-			if (doX && !doY)
-			  IJ.run("Translate...", "x=" + correction[i-1].getX() + " y=" + 0 + " interpolation=None slice");
-			if (!doX && doY)
-			  IJ.run("Translate...", "x=" + 0 + " y=" + correction[i-1].getY() + " interpolation=None slice");
+		if (virtualOutput) { // slices are translated when they are displayed
+			ImagePlus aligned = new ImagePlus(imp.getShortTitle() + "-aligned", new AlignedVirtualStack(imp.getStack(), dx, dy));
+			aligned.setCalibration(imp.getCalibration());
+			if (hyperstack) {
+				aligned.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+				aligned.setOpenAsHyperStack(true);
+			}
+			aligned.show();
+			return;
 		}
 
-		imp.setSlice(slicetmp); // restore selection
+		ForkJoinPool pool = null; // translate slices in parallel
+		if (Prefs.getThreads() > 1) pool = new ForkJoinPool(Prefs.getThreads());
+		new StackTranslator(pool).translate(imp.getStack(), dx, dy);
+		if (pool != null) pool.shutdown();
+
+		imp.changes = true;
+		imp.updateAndDraw();
 
 	}
 	  
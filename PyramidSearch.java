@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.process.*;
+import java.awt.*;
+
+// Coarse-to-fine search for the translation of the Roi (used by Alignment_Roi).
+// Search region and reference are downsampled (2 x 2 binning) until the range is
+// small. All translations are checked at the coarsest level, every finer level
+// only checks +-REFINE px around the scaled result of the coarser level.
+// The error is the same as in ErrorKernel.computeError (exponent power).
+// The downsampled reference is kept in a ReferenceCache, so only the search
+// region is downsampled for every slice compared with the same reference.
+public class PyramidSearch {
+
+	static final int REFINE = 2; // range checked around the result of the coarser level
+	static final int MAX_RANGE = 4; // range at which downsampling stops
+	static final int MIN_SIZE = 4; // min. width and height of the Roi at the coarsest level
+
+	int roiWidth;
+	int roiHeight;
+	int range;
+	double power;
+	int levels; // number of downsampled levels, 0: no downsampling possible
+	int margin; // range rounded up to a multiple of 2^levels, keeps the Roi on the grid of every level
+
+	public PyramidSearch(int roiWidth, int roiHeight, int range, double power) {
+		this.roiWidth = roiWidth;
+		this.roiHeight = roiHeight;
+		this.range = range;
+		this.power = power;
+		levels = 0;
+		while ((range >> levels) > MAX_RANGE && (roiWidth >> (levels + 1)) >= MIN_SIZE && (roiHeight >> (levels + 1)) >= MIN_SIZE)
+			levels++;
+		margin = ((range + (1 << levels) - 1) >> levels) << levels;
+	}
+
+	// returns the translation (xtrans, ytrans) found at level 1, scaled to full resolution;
+	// it has to be refined by checking +-REFINE px around it at full resolution
+	public Point coarseShift(ImageProcessor ip, int roiX, int roiY, ReferenceCache cache) {
+		if (cache.pyramid == null) cache.pyramid = downsampleReference(cache.ref);
+		double[][] ref = cache.pyramid;
+		double[][] region = new double[levels + 1][];
+		int[] regionWidth = new int[levels + 1];
+		int[] regionHeight = new int[levels + 1];
+		int[] refWidth = new int[levels + 1];
+		int[] refHeight = new int[levels + 1];
+
+		// level 0: search region and reference at full resolution, NaN outside of the image
+		regionWidth[0] = roiWidth + 2 * margin;
+		regionHeight[0] = roiHeight + 2 * margin;
+		region[0] = new double[regionWidth[0] * regionHeight[0]];
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		for (int y = 0; y < regionHeight[0]; y++) {
+			int yImage = roiY - margin + y;
+			for (int x = 0; x < regionWidth[0]; x++) {
+				int xImage = roiX - margin + x;
+				if (xImage >= 0 && xImage < width && yImage >= 0 && yImage < height)
+					region[0][y * regionWidth[0] + x] = ip.getPixelValue(xImage, yImage);
+				else region[0][y * regionWidth[0] + x] = Double.NaN;
+			}
+		}
+		refWidth[0] = roiWidth;
+		refHeight[0] = roiHeight;
+
+		// downsampled levels
+		for (int k = 1; k <= levels; k++) {
+			regionWidth[k] = regionWidth[k-1] / 2;
+			regionHeight[k] = regionHeight[k-1] / 2;
+			region[k] = downsample(region[k-1], regionWidth[k-1], regionWidth[k], regionHeight[k]);
+			refWidth[k] = refWidth[k-1] / 2;
+			refHeight[k] = refHeight[k-1] / 2;
+		}
+
+		// coarsest level: check all translations
+		int rangeK = (range + (1 << levels) - 1) >> levels;
+		Point best = search(region[levels], regionWidth[levels], ref[levels], refWidth[levels], refHeight[levels],
+			margin >> levels, 0, 0, rangeK, rangeK);
+
+		// finer levels: check around the scaled result of the coarser level
+		for (int k = levels - 1; k >= 1; k--) {
+			rangeK = (range + (1 << k) - 1) >> k;
+			best = search(region[k], regionWidth[k], ref[k], refWidth[k], refHeight[k],
+				margin >> k, 2 * best.x, 2 * best.y, REFINE, rangeK);
+		}
+
+		return new Point(2 * best.x, 2 * best.y);
+	}
+
+	// reference at full resolution and downsampled for every level (computed once per reference)
+	double[][] downsampleReference(float[] refPixels) {
+		double[][] ref = new double[levels + 1][];
+		ref[0] = new double[roiWidth * roiHeight];
+		for (int i = 0; i < roiWidth * roiHeight; i++) {
+			ref[0][i] = refPixels[i];
+		}
+		int width = roiWidth;
+		for (int k = 1; k <= levels; k++) {
+			ref[k] = downsample(ref[k-1], width, width / 2, (roiHeight >> (k - 1)) / 2);
+			width /= 2;
+		}
+		return ref;
+	}
+
+	// checks all translations within +-window around (centerX, centerY), limited to +-limit;
+	// same order and tie-breaking as AlignmentEngine.computeBestCorr
+	Point search(double[] region, int regionWidth, double[] ref, int refWidth, int refHeight,
+		int offset, int centerX, int centerY, int window, int limit) {
+		Point best = new Point(centerX, centerY);
+		double minerror = 0;
+		boolean found = false;
+		for (int xtrans = Math.max(centerX - window, - limit); xtrans <= Math.min(centerX + window, limit); xtrans++) {
+			for (int ytrans = Math.max(centerY - window, - limit); ytrans <= Math.min(centerY + window, limit); ytrans++) {
+				double errorsum = 0;
+				for (int j = 0; j < refHeight; j++) {
+					int pos = (offset + ytrans + j) * regionWidth + offset + xtrans;
+					for (int i = 0; i < refWidth; i++) {
+						errorsum += Math.pow(Math.abs(region[pos + i] - ref[j * refWidth + i]), power);
+					}
+				}
+				if (Double.isNaN(errorsum)) continue; // candidate outside of the image
+				if (!found || errorsum < minerror) {
+					found = true;
+					minerror = errorsum;
+					best.x = xtrans;
+					best.y = ytrans;
+				}
+			}
+		}
+		return best;
+	}
+
+	// 2 x 2 binning (mean value)
+	static double[] downsample(double[] pixels, int width, int newWidth, int newHeight) {
+		double[] result = new double[newWidth * newHeight];
+		for (int y = 0; y < newHeight; y++) {
+			for (int x = 0; x < newWidth; x++) {
+				int pos = 2 * y * width + 2 * x;
+				result[y * newWidth + x] = 0.25 * (pixels[pos] + pixels[pos + 1] + pixels[pos + width] + pixels[pos + width + 1]);
+			}
+		}
+		return result;
+	}
+
+}
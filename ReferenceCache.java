@@ -0,0 +1,49 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Data derived from the reference Roi (used by Alignment_Roi, FFTSearch and
+// PyramidSearch). It is computed when it is needed for the first time and then
+// reused for all slices compared with the same reference, i.e. the whole stack
+// in "selected slice" mode. Call update whenever the reference changes (every
+// slice in "previous slice" mode), the cached data is then computed again.
+public class ReferenceCache {
+
+	float[] ref; // reference Roi, row-major (array of the ErrorKernel, changes with the reference)
+	int roiWidth;
+	int roiHeight;
+
+	// FFTSearch: zero-padded reference with mean subtracted, in Fourier space
+	double[] spectrumRe;
+	double[] spectrumIm;
+	double mean; // mean of the reference
+	double energy; // sum of the squared values (mean subtracted)
+
+	// PyramidSearch: reference downsampled for every level (level 0: full resolution)
+	double[][] pyramid;
+
+	public ReferenceCache(float[] ref, int roiWidth, int roiHeight) {
+		this.ref = ref;
+		this.roiWidth = roiWidth;
+		this.roiHeight = roiHeight;
+	}
+
+	// the reference has changed, derived data has to be computed again
+	public void update() {
+		spectrumRe = null;
+		spectrumIm = null;
+		pyramid = null;
+	}
+
+}
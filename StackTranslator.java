@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Translation of all slices of a stack by integer shifts (used by Alignment_Roi
+// and Prealign_Stack). The pixel arrays of the slices are shifted in place, row
+// by row with System.arraycopy; pixels moved in from outside of the image are 0.
+// This is the same result as Image > Transform > Translate with interpolation
+// "None" for every slice, without the overhead of running the command (macro
+// options, undo, display update) for each slice.
+// Works for all types of images (byte, short, float and int pixel arrays).
+// Slices are distributed over the threads of the pool, if there is one.
+public class StackTranslator {
+
+	ForkJoinPool pool; // null: all slices in the calling thread
+
+	public StackTranslator(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	// moves slice n of the stack by (dx[n-1], dy[n-1]) px, positive values move to the right / down
+	public void translate(ImageStack stack, int[] dx, int[] dy) {
+		Slices slices = new Slices(stack, dx, dy, 1, stack.getSize());
+		if (pool != null) pool.invoke(slices);
+		else slices.compute();
+	}
+
+	// moves the pixels of an image (row-major array) by (dx, dy) px
+	public static void translate(Object pixels, int width, int height, int dx, int dy) {
+		if (dx == 0 && dy == 0) return;
+		if (Math.abs(dx) >= width || Math.abs(dy) >= height) { // image moved out completely
+			fill(pixels, 0, width * height);
+			return;
+		}
+		int length = width - Math.abs(dx); // pixels per row that stay in the image
+		int srcX = Math.max(0, - dx);
+		int dstX = Math.max(0, dx);
+
+		// rows are copied in the direction of the shift, so source rows are not yet overwritten
+		int firstY = dy > 0 ? height - 1 : 0;
+		int step = dy > 0 ? -1 : 1;
+		for (int n = 0, y = firstY; n < height - Math.abs(dy); n++, y += step) {
+			int row = y * width;
+			System.arraycopy(pixels, (y - dy) * width + srcX, pixels, row + dstX, length);
+			if (dx > 0) fill(pixels, row, row + dx);
+			if (dx < 0) fill(pixels, row + width + dx, row + width);
+		}
+
+		// rows moved in from above or below
+		if (dy > 0) fill(pixels, 0, dy * width);
+		if (dy < 0) fill(pixels, (height + dy) * width, height * width);
+	}
+
+	// copies the pixels of an image moved by (dx, dy) px to another array of the same type and size,
+	// which has to be 0 (e.g. a new array) where no pixels are moved in
+	public static void copyTranslated(Object src, Object dst, int width, int height, int dx, int dy) {
+		if (Math.abs(dx) >= width || Math.abs(dy) >= height) return; // image moved out completely
+		int length = width - Math.abs(dx);
+		int srcX = Math.max(0, - dx);
+		int dstX = Math.max(0, dx);
+		for (int y = Math.max(0, dy); y < height + Math.min(0, dy); y++) {
+			System.arraycopy(src, (y - dy) * width + srcX, dst, y * width + dstX, length);
+		}
+	}
+
+	// sets the pixels from (inclusive) ... to (exclusive) to 0
+	static void fill(Object pixels, int from, int to) {
+		if (pixels instanceof byte[]) Arrays.fill((byte[]) pixels, from, to, (byte) 0);
+		else if (pixels instanceof short[]) Arrays.fill((short[]) pixels, from, to, (short) 0);
+		else if (pixels instanceof float[]) Arrays.fill((float[]) pixels, from, to, 0f);
+		else if (pixels instanceof int[]) Arrays.fill((int[]) pixels, from, to, 0);
+	}
+
+	// translates the slices firstSlice...lastSlice, split into single slices
+	static class Slices extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		ImageStack stack;
+		int[] dx;
+		int[] dy;
+		int firstSlice;
+		int lastSlice;
+
+		Slices(ImageStack stack, int[] dx, int[] dy, int firstSlice, int lastSlice) {
+			this.stack = stack;
+			this.dx = dx;
+			this.dy = dy;
+			this.firstSlice = firstSlice;
+			this.lastSlice = lastSlice;
+		}
+
+		protected void compute() {
+			if (firstSlice < lastSlice && getPool() != null) {
+				int middle = firstSlice + (lastSlice - firstSlice) / 2;
+				invokeAll(new Slices(stack, dx, dy, firstSlice, middle), new Slices(stack, dx, dy, middle + 1, lastSlice));
+				return;
+			}
+			for (int n = firstSlice; n <= lastSlice; n++) {
+				translate(stack.getPixels(n), stack.getWidth(), stack.getHeight(), dx[n-1], dy[n-1]);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import ij.process.*;
+import java.awt.*;
+import jdk.incubator.vector.*;
+
+// Error kernel for exponents 1 and 2 using the Vector API (SIMD instructions),
+// for 8 and 16 bit images without calibration and for 32 bit images.
+// Requires Java 16 or newer with the incubator module: compile and run with
+//   --add-modules jdk.incubator.vector
+// The other classes only load this one by name (ErrorKernel.create with
+// vector = true), so they can be compiled and used without the module; the
+// scalar kernels are used then.
+//  - 8 and 16 bit: pixels of the search region are copied to an int array for
+//    every slice; differences and their sums per row in int lanes (squares of
+//    16 bit differences in long lanes), same errors as the scalar kernels
+//  - 32 bit: differences, squares and sums in double lanes, same as the scalar
+//    kernel except for the order of summation (rounding)
+// Each row of the Roi is processed in vectors of the preferred size of the CPU
+// (widened values: vectors with half as many bits, as many lanes), the remaining
+// pixels of the row one by one. Early termination after every row
+// as in the scalar kernels.
+public class VectorKernel extends ErrorKernel {
+
+	static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Long> LONG = LongVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Integer> HALF_INT = VectorSpecies.of(int.class, VectorShape.forBitSize(LONG.vectorBitSize() / 2)); // as many lanes as LONG
+	static final VectorSpecies<Double> DOUBLE = DoubleVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Float> HALF_FLOAT = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLE.vectorBitSize() / 2)); // as many lanes as DOUBLE
+
+	boolean integer; // 8 and 16 bit images
+	boolean wide; // 16 bit images and exponent 2: squares do not fit into int
+	int[] refInt; // reference Roi as integer values
+	int[] intPixels; // search region of the current slice (8 and 16 bit), row length width
+	float[] floatPixels; // pixels of the current slice (32 bit)
+
+	public VectorKernel(ImageProcessor ip, int roiWidth, int roiHeight, double power) {
+		super(roiWidth, roiHeight, power);
+		if (power != 1 && power != 2) throw new IllegalArgumentException("Exponent must be 1 or 2");
+		if (ip.getCalibrationTable() != null || ip instanceof ColorProcessor)
+			throw new IllegalArgumentException("Calibrated and RGB images are not supported");
+		integer = !(ip instanceof FloatProcessor);
+		wide = ip instanceof ShortProcessor && power == 2;
+		refInt = new int[roiWidth * roiHeight];
+	}
+
+	public void setReference(ImageProcessor ip, int roiX, int roiY) {
+		super.setReference(ip, roiX, roiY);
+		for (int i = 0; i < refInt.length; i++) {
+			refInt[i] = (int) ref[i];
+		}
+	}
+
+	public void setSlice(ImageProcessor ip) {
+		setSlice(ip, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+	}
+
+	public void setSlice(ImageProcessor ip, Rectangle region) {
+		super.setSlice(ip);
+		if (!integer) {
+			floatPixels = (float[]) ip.getPixels();
+			return;
+		}
+		if (intPixels == null || intPixels.length != width * height) intPixels = new int[width * height];
+		region = region.intersection(new Rectangle(0, 0, width, height));
+		Object p = ip.getPixels();
+		for (int y = region.y; y < region.y + region.height; y++) {
+			int first = y * width + region.x;
+			int last = first + region.width;
+			if (p instanceof byte[]) {
+				byte[] bytes = (byte[]) p;
+				for (int i = first; i < last; i++) intPixels[i] = bytes[i] & 0xff;
+			} else {
+				short[] shorts = (short[]) p;
+				for (int i = first; i < last; i++) intPixels[i] = shorts[i] & 0xffff;
+			}
+		}
+	}
+
+	public double computeError(int xzero, int yzero, double limit) {
+		if (!isInside(xzero, yzero)) return Double.NaN;
+		if (integer) {
+			long errorsum = 0;
+			for (int y = 0; y < roiHeight; y++) {
+				int pos = (yzero + y) * width + xzero;
+				int refpos = y * roiWidth;
+				if (wide) errorsum += rowSquaresLong(pos, refpos);
+				else if (power == 1) errorsum += rowAbsInt(pos, refpos);
+				else errorsum += rowSquaresInt(pos, refpos);
+				if (errorsum > limit) {
+					count(y + 1);
+					return errorsum;
+				}
+			}
+			count(roiHeight);
+			return errorsum;
+		}
+		double errorsum = 0;
+		for (int y = 0; y < roiHeight; y++) {
+			errorsum += rowFloat((yzero + y) * width + xzero, y * roiWidth);
+			if (errorsum > limit) {
+				count(y + 1);
+				return errorsum;
+			}
+		}
+		count(roiHeight);
+		return errorsum;
+	}
+
+	// sum of |I - R| of one row (no overflow of the int lanes for rows < 32768 * lanes px)
+	long rowAbsInt(int pos, int refpos) {
+		IntVector sum = IntVector.zero(INT);
+		int x = 0;
+		for (int upper = INT.loopBound(roiWidth); x < upper; x += INT.length()) {
+			IntVector diff = IntVector.fromArray(INT, intPixels, pos + x).sub(IntVector.fromArray(INT, refInt, refpos + x));
+			sum = sum.add(diff.abs());
+		}
+		long errorsum = sum.reduceLanesToLong(VectorOperators.ADD);
+		for (; x < roiWidth; x++) {
+			errorsum += Math.abs(intPixels[pos + x] - refInt[refpos + x]);
+		}
+		return errorsum;
+	}
+
+	// sum of (I - R)^2 of one row, 8 bit
+	long rowSquaresInt(int pos, int refpos) {
+		IntVector sum = IntVector.zero(INT);
+		int x = 0;
+		for (int upper = INT.loopBound(roiWidth); x < upper; x += INT.length()) {
+			IntVector diff = IntVector.fromArray(INT, intPixels, pos + x).sub(IntVector.fromArray(INT, refInt, refpos + x));
+			sum = sum.add(diff.mul(diff));
+		}
+		long errorsum = sum.reduceLanesToLong(VectorOperators.ADD);
+		for (; x < roiWidth; x++) {
+			long diff = intPixels[pos + x] - refInt[refpos + x];
+			errorsum += diff * diff;
+		}
+		return errorsum;
+	}
+
+	// sum of (I - R)^2 of one row, 16 bit: the differences are widened to long lanes
+	long rowSquaresLong(int pos, int refpos) {
+		LongVector sum = LongVector.zero(LONG);
+		int x = 0;
+		for (int upper = HALF_INT.loopBound(roiWidth); x < upper; x += HALF_INT.length()) {
+			IntVector diff = IntVector.fromArray(HALF_INT, intPixels, pos + x).sub(IntVector.fromArray(HALF_INT, refInt, refpos + x));
+			LongVector wide = (LongVector) diff.convertShape(VectorOperators.I2L, LONG, 0);
+			sum = sum.add(wide.mul(wide));
+		}
+		long errorsum = sum.reduceLanes(VectorOperators.ADD);
+		for (; x < roiWidth; x++) {
+			long diff = intPixels[pos + x] - refInt[refpos + x];
+			errorsum += diff * diff;
+		}
+		return errorsum;
+	}
+
+	// sum of |I - R| or (I - R)^2 of one row, 32 bit: pixels are widened to double lanes
+	double rowFloat(int pos, int refpos) {
+		DoubleVector sum = DoubleVector.zero(DOUBLE);
+		int x = 0;
+		for (int upper = HALF_FLOAT.loopBound(roiWidth); x < upper; x += HALF_FLOAT.length()) {
+			DoubleVector pixels = (DoubleVector) FloatVector.fromArray(HALF_FLOAT, floatPixels, pos + x).convertShape(VectorOperators.F2D, DOUBLE, 0);
+			DoubleVector reference = (DoubleVector) FloatVector.fromArray(HALF_FLOAT, ref, refpos + x).convertShape(VectorOperators.F2D, DOUBLE, 0);
+			DoubleVector diff = pixels.sub(reference);
+			sum = power == 1 ? sum.add(diff.abs()) : sum.add(diff.mul(diff));
+		}
+		double errorsum = sum.reduceLanes(VectorOperators.ADD);
+		for (; x < roiWidth; x++) {
+			double diff = (double) floatPixels[pos + x] - ref[refpos + x];
+			errorsum += power == 1 ? Math.abs(diff) : diff * diff;
+		}
+		return errorsum;
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Apply stage on the synthetic stacks of Alignment_Benchmark (20 slices, shifts up
+// to +-10 px): translating all slices in place (StackTranslator, one thread) or
+// reading all slices of an AlignedVirtualStack; time per stack.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ApplyBenchmark {
+
+	@Param({"8-bit", "16-bit", "32-bit", "RGB"})
+	String type;
+
+	@Param({"in place", "virtual stack"})
+	String output;
+
+	Callable<Object> apply;
+
+	@Setup(Level.Trial)
+	public void setup() throws ReflectiveOperationException {
+		apply = Stages.apply(type, output.equals("virtual stack"));
+	}
+
+	@Benchmark
+	public Object apply() throws Exception {
+		return apply.call();
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Search stage of Alignment_Roi (AlignmentEngine.align) on the synthetic stacks of
+// Alignment_Benchmark (512 x 512 px, 20 slices, Roi in the center, one thread):
+// time per alignment of the whole stack. "vector" uses VectorKernel where possible
+// (exponents 1 and 2), hence the incubator module in the forked JVM.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Djava.awt.headless=true"})
+public class SearchBenchmark {
+
+	@Param({"8-bit", "16-bit", "32-bit", "RGB"})
+	String type;
+
+	@Param({"32", "64", "128"})
+	int roiSize;
+
+	@Param({"5", "10"})
+	int range;
+
+	@Param({"2", "1"})
+	double exponent;
+
+	@Param({"exhaustive", "FFT", "image pyramid"})
+	String method;
+
+	@Param({"selected slice", "previous slice"})
+	String mode;
+
+	@Param({"scalar", "vector"})
+	String kernel;
+
+	Callable<Object> search;
+
+	@Setup(Level.Trial)
+	public void setup() throws ReflectiveOperationException {
+		search = Stages.search(type, roiSize, range, exponent, method, mode, kernel.equals("vector"));
+	}
+
+	@Benchmark
+	public Object search() throws Exception {
+		return search.call();
+	}
+
+}
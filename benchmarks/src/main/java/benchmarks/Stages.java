@@ -0,0 +1,45 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import java.util.concurrent.*;
+
+// Tasks of Alignment_Benchmark (synthetic stacks, search and apply stages). The
+// plugins are in the default package, which cannot be imported (and JMH needs a
+// package), so the class is loaded by name; the tasks are created once per trial.
+class Stages {
+
+	static Object benchmark() throws ReflectiveOperationException {
+		return Class.forName("Alignment_Benchmark").getConstructor().newInstance();
+	}
+
+	@SuppressWarnings("unchecked")
+	static Callable<Object> search(String type, int roiSize, int range, double power, String method, String mode,
+		boolean vector) throws ReflectiveOperationException {
+		Object benchmark = benchmark();
+		return (Callable<Object>) benchmark.getClass().getMethod("searchTask", String.class, int.class, int.class,
+			double.class, String.class, String.class, boolean.class)
+			.invoke(benchmark, type, roiSize, range, power, method, mode, vector);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Callable<Object> apply(String type, boolean virtual) throws ReflectiveOperationException {
+		Object benchmark = benchmark();
+		return (Callable<Object>) benchmark.getClass().getMethod("applyTask", String.class, boolean.class)
+			.invoke(benchmark, type, virtual);
+	}
+
+}
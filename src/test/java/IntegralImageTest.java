@@ -0,0 +1,74 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+class IntegralImageTest {
+
+	static double[] random(int n, long seed) {
+		Random random = new Random(seed);
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++) values[i] = random.nextInt(200) - 100;
+		return values;
+	}
+
+	static void assertSums(IntegralImage integral, double[] values, int width, int height) {
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				for (int h = 1; y + h <= height; h++) {
+					for (int w = 1; x + w <= width; w++) {
+						double sum = 0;
+						double sum2 = 0;
+						for (int j = y; j < y + h; j++) {
+							for (int i = x; i < x + w; i++) {
+								sum += values[j * width + i];
+								sum2 += values[j * width + i] * values[j * width + i];
+							}
+						}
+						assertEquals(sum, integral.sum(x, y, w, h), "sum " + x + "," + y + "," + w + "," + h);
+						assertEquals(sum2, integral.sumOfSquares(x, y, w, h), "squares " + x + "," + y + "," + w + "," + h);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void sums() {
+		double[] values = random(7 * 5, 1);
+		assertSums(new IntegralImage(values, 7, 5), values, 7, 5);
+	}
+
+	// same number of pixels, other shape (e.g. search region clipped at the image border)
+	@Test
+	void updateWithOtherShape() {
+		double[] ones = new double[15];
+		Arrays.fill(ones, 1);
+		IntegralImage integral = new IntegralImage(ones, 5, 3);
+		integral.update(ones, 3, 5);
+		assertEquals(15, integral.sum(0, 0, 3, 5));
+		assertSums(integral, ones, 3, 5);
+
+		double[] values = random(6 * 4, 2);
+		integral.update(values, 6, 4);
+		integral.update(random(4 * 6, 3), 4, 6);
+		integral.update(values, 6, 4);
+		assertSums(integral, values, 6, 4);
+	}
+
+}
@@ -0,0 +1,72 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+class MultiStackRegFileTest {
+
+	@TempDir
+	Path directory;
+
+	Corrections roundTrip(int[] x, int[] y, int refSlice) throws IOException {
+		String path = directory.resolve("translations.txt").toString();
+		MultiStackRegFile.write(path, x, y, refSlice, 100, 80);
+		return MultiStackRegFile.read(path, 1);
+	}
+
+	@Test
+	void readsWhatWasWritten() throws IOException {
+		int[] x = {4, 2, 0, -3, -5, -5};
+		int[] y = {-1, 0, 0, 2, 7, 7};
+		Corrections corrections = roundTrip(x, y, 3);
+		assertArrayEquals(x, corrections.getX());
+		assertArrayEquals(y, corrections.getY());
+	}
+
+	@Test
+	void targetIsFirstOrLastSlice() throws IOException {
+		int[] x = {0, 1, 3, 6};
+		int[] y = {0, -2, -2, 1};
+		assertArrayEquals(x, roundTrip(x, y, 1).getX());
+		int[] last = {-6, -5, -3, 0};
+		assertArrayEquals(last, roundTrip(last, y, 4).getX());
+	}
+
+	// Alignment_Roi with the selected slice at the end of a range that ends before the stack
+	@Test
+	void slicesAfterTheRange() throws IOException {
+		Corrections aligned = new Corrections(new int[] {4, 2, 0, 0, 0}, new int[] {1, 1, 0, 0, 0}, new int[5], 1, 3, 3, Double.NaN);
+		String path = directory.resolve("aligned.txt").toString();
+		aligned.saveMultiStackReg(path, 100, 80);
+		Corrections corrections = MultiStackRegFile.read(path, 1);
+		assertArrayEquals(new int[] {4, 2, 0, 0, 0}, corrections.getX());
+		assertArrayEquals(new int[] {1, 1, 0, 0, 0}, corrections.getY());
+	}
+
+	@Test
+	void scale() throws IOException {
+		String path = directory.resolve("binned.txt").toString();
+		MultiStackRegFile.write(path, new int[] {0, 3, -2}, new int[] {0, 1, 5}, 1, 50, 40);
+		Corrections corrections = MultiStackRegFile.read(path, 2);
+		assertArrayEquals(new int[] {0, 6, -4}, corrections.getX());
+		assertArrayEquals(new int[] {0, 2, 10}, corrections.getY());
+	}
+
+}
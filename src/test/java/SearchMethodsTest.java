@@ -0,0 +1,136 @@
+/*
+Copyright (c) 2010 Michael Mohn and Jannik Meyer, Ulm University
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import ij.*;
+import java.awt.*;
+import org.junit.jupiter.params.*;
+import org.junit.jupiter.params.provider.*;
+
+// The faster search variants have to find the same shifts as the plain exhaustive
+// search (one thread, no early termination, scalar kernel) on the synthetic stacks
+// of Alignment_Benchmark (textured image shifted by up to +-3 px per slice).
+class SearchMethodsTest {
+
+	static final int SIZE = 96;
+	static final int SLICES = 8;
+
+	static ImagePlus stack(String type) {
+		Alignment_Benchmark benchmark = new Alignment_Benchmark();
+		benchmark.size = SIZE;
+		benchmark.slices = SLICES;
+		return benchmark.syntheticStack(type);
+	}
+
+	static AlignmentEngine exhaustive(ImagePlus imp, double power, String mode) {
+		AlignmentEngine engine = new AlignmentEngine(imp.getStack(), new Rectangle(32, 32, 32, 32));
+		engine.setPixelValues(imp.getProcessor());
+		engine.range = 7; // shifts up to 6 px from slice to slice
+		engine.power = power;
+		engine.earlyExit = false;
+		engine.setMode(mode, 0);
+		return engine;
+	}
+
+	static void assertSameShifts(Corrections expected, Corrections actual, String variant) {
+		assertArrayEquals(expected.getX(), actual.getX(), variant + ": x");
+		assertArrayEquals(expected.getY(), actual.getY(), variant + ": y");
+	}
+
+	// slice n shows a random texture moved by (-dx[n-1], -dy[n-1]) px
+	@org.junit.jupiter.api.Test
+	void exhaustiveFindsTheShifts() {
+		int[] dx = {0, 3, -2, 4, -1, 1}; // up to 7 px (range) from slice to slice
+		int[] dy = {0, -4, 2, 5, 0, -3};
+		int margin = 8;
+		int full = SIZE + 2 * margin;
+		java.util.Random random = new java.util.Random(1);
+		float[] texture = new float[full * full];
+		for (int i = 0; i < texture.length; i++) texture[i] = (float) random.nextGaussian();
+		ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int n = 0; n < dx.length; n++) {
+			float[] pixels = new float[SIZE * SIZE];
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) pixels[y * SIZE + x] = texture[(y + margin + dy[n]) * full + x + margin + dx[n]];
+			}
+			stack.addSlice("" + (n + 1), new ij.process.FloatProcessor(SIZE, SIZE, pixels));
+		}
+		Corrections corrections = exhaustive(new ImagePlus("shifted", stack), 2, "selected slice").align();
+		assertArrayEquals(dx, corrections.getX());
+		assertArrayEquals(dy, corrections.getY());
+	}
+
+	@ParameterizedTest
+	@CsvSource({"8-bit, 2", "16-bit, 2", "32-bit, 2", "RGB, 2", "8-bit, 1", "32-bit, 1.5", "16-bit, 3"})
+	void earlyTerminationAndThreads(String type, double power) {
+		ImagePlus imp = stack(type);
+		for (String mode : new String[] {"selected slice", "previous slice"}) {
+			Corrections expected = exhaustive(imp, power, mode).align();
+
+			AlignmentEngine early = exhaustive(imp, power, mode);
+			early.earlyExit = true;
+			assertSameShifts(expected, early.align(), "early termination, " + mode);
+
+			AlignmentEngine parallel = exhaustive(imp, power, mode);
+			parallel.threads = 4;
+			assertSameShifts(expected, parallel.align(), "4 threads, " + mode);
+
+			AlignmentEngine both = exhaustive(imp, power, mode);
+			both.threads = 4;
+			both.earlyExit = true;
+			assertSameShifts(expected, both.align(), "4 threads with early termination, " + mode);
+		}
+	}
+
+	@ParameterizedTest
+	@CsvSource({"8-bit", "16-bit", "32-bit", "RGB"})
+	void fftAtExponent2(String type) {
+		ImagePlus imp = stack(type);
+		for (String mode : new String[] {"selected slice", "previous slice"}) {
+			Corrections expected = exhaustive(imp, 2, mode).align();
+			AlignmentEngine fft = exhaustive(imp, 2, mode);
+			fft.searchMethod = "FFT";
+			assertSameShifts(expected, fft.align(), "FFT, " + mode);
+		}
+	}
+
+	// VectorKernel if the module jdk.incubator.vector is available (see pom.xml), otherwise the scalar kernels
+	@ParameterizedTest
+	@CsvSource({"8-bit, 2", "16-bit, 2", "32-bit, 2", "8-bit, 1", "16-bit, 1", "32-bit, 1"})
+	void vectorKernel(String type, double power) {
+		ImagePlus imp = stack(type);
+		Corrections expected = exhaustive(imp, power, "selected slice").align();
+		AlignmentEngine vector = exhaustive(imp, power, "selected slice");
+		vector.vectorKernel = true;
+		vector.earlyExit = true;
+		assertSameShifts(expected, vector.align(), "vector kernel");
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+			assertEquals("VectorKernel", vector.kernel.getClass().getName());
+	}
+
+	// drift of the whole image: the same shifts with any number of chunks
+	@ParameterizedTest
+	@CsvSource({"2", "3", "6"})
+	void parallelChunks(int threads) {
+		ImagePlus imp = stack("32-bit");
+		Corrections expected = exhaustive(imp, 2, "previous slice").align();
+		AlignmentEngine chunked = exhaustive(imp, 2, "previous slice");
+		chunked.chunked = true;
+		chunked.threads = threads;
+		assertSameShifts(expected, chunked.align(), threads + " chunks");
+	}
+
+}